@@ -0,0 +1,110 @@
+package net.class101.iap.fixtures;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+/**
+ * Builds {@link ProductDetails} for the benchmarks, the fake backend and the unit tests.
+ * ProductDetails has no public constructor, so they are parsed from the same JSON shape Play
+ * returns; this is the one place to update when a Billing Library upgrade changes either.
+ */
+public final class ProductDetailsFixtures {
+    private static final Constructor<ProductDetails> PRODUCT_DETAILS_CONSTRUCTOR;
+
+    static {
+        try {
+            PRODUCT_DETAILS_CONSTRUCTOR = ProductDetails.class.getDeclaredConstructor(String.class);
+            PRODUCT_DETAILS_CONSTRUCTOR.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ProductDetailsFixtures() {
+    }
+
+    @NonNull
+    public static ProductDetails oneTimeProduct(@NonNull String productId, long priceAmountMicros, @NonNull String currencyCode) {
+        try {
+            JSONObject json = product(productId, BillingClient.ProductType.INAPP)
+                    .put("oneTimePurchaseOfferDetails", new JSONObject()
+                            .put("priceAmountMicros", priceAmountMicros)
+                            .put("priceCurrencyCode", currencyCode)
+                            .put("formattedPrice", formatPrice(priceAmountMicros, currencyCode)));
+            return parse(json);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * A monthly subscription with one base plan per {@code planIds} entry, each with a base offer
+     * and one developer offer per {@code offerIds} entry.
+     */
+    @NonNull
+    public static ProductDetails subscription(@NonNull String productId, long priceAmountMicros, @NonNull String currencyCode, @NonNull List<String> planIds, @NonNull List<String> offerIds) {
+        try {
+            JSONArray offers = new JSONArray();
+            for (String planId : planIds) {
+                offers.put(offer(productId, planId, null, priceAmountMicros, currencyCode));
+                for (String offerId : offerIds) {
+                    offers.put(offer(productId, planId, offerId, priceAmountMicros, currencyCode));
+                }
+            }
+
+            return parse(product(productId, BillingClient.ProductType.SUBS).put("subscriptionOfferDetails", offers));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static ProductDetails parse(JSONObject json) {
+        try {
+            return PRODUCT_DETAILS_CONSTRUCTOR.newInstance(json.toString());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JSONObject product(String productId, String type) throws JSONException {
+        return new JSONObject()
+                .put("productId", productId)
+                .put("type", type)
+                .put("title", productId + " (Fixture)")
+                .put("name", productId)
+                .put("description", "Fixture product " + productId)
+                .put("skuDetailsToken", "sku-details-" + productId);
+    }
+
+    private static JSONObject offer(String productId, String planId, @Nullable String offerId, long priceAmountMicros, String currencyCode) throws JSONException {
+        JSONObject offer = new JSONObject()
+                .put("basePlanId", planId)
+                .put("offerIdToken", "offer-token-" + productId + "-" + planId + "-" + offerId)
+                .put("offerTags", new JSONArray())
+                .put("pricingPhases", new JSONArray().put(new JSONObject()
+                        .put("priceAmountMicros", priceAmountMicros)
+                        .put("priceCurrencyCode", currencyCode)
+                        .put("formattedPrice", formatPrice(priceAmountMicros, currencyCode))
+                        .put("billingPeriod", "P1M")
+                        .put("recurrenceMode", ProductDetails.RecurrenceMode.INFINITE_RECURRING)
+                        .put("billingCycleCount", 0)));
+        if (offerId != null) {
+            offer.put("offerId", offerId);
+        }
+        return offer;
+    }
+
+    private static String formatPrice(long priceAmountMicros, String currencyCode) {
+        return String.format("%s %.2f", currencyCode, priceAmountMicros / 1_000_000.0);
+    }
+}
@@ -0,0 +1,55 @@
+package net.class101.iap.benchmark;
+
+import net.class101.iap.internal.metrics.BillingTrace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the always-on operation trace, recorded on every billing call and callback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BillingTraceBenchmark {
+    private BillingTrace trace;
+
+    @Setup
+    public void setUp() {
+        trace = new BillingTrace(512);
+        for (int i = 0; i < 512; i++) {
+            trace.record(BillingTrace.Operation.QUERY_PURCHASES, trace.newCorrelationId(), 0, 1_000_000);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        trace.record(BillingTrace.Operation.CONSUME, 1, 0, 1_000_000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        trace.record(BillingTrace.Operation.CONSUME, 1, 0, 1_000_000);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String dump() {
+        return trace.dump();
+    }
+}
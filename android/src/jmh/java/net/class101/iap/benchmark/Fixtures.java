@@ -0,0 +1,135 @@
+package net.class101.iap.benchmark;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.Purchase;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+
+import net.class101.iap.fixtures.ProductDetailsFixtures;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic catalogs, purchases and configs. Product details come from
+ * {@link ProductDetailsFixtures}, shared with the fake backend.
+ */
+final class Fixtures {
+    static final int PLANS_PER_PRODUCT = 3;
+    static final int OFFERS_PER_PLAN = 2;
+
+    private Fixtures() {
+    }
+
+    static String productId(int index) {
+        return "product_" + index;
+    }
+
+    static String planId(int index) {
+        return "plan_" + index;
+    }
+
+    static String offerId(int index) {
+        return "offer_" + index;
+    }
+
+    static boolean isSubscription(int index) {
+        return index % 2 == 0;
+    }
+
+    static List<ProductDetails> catalog(int size) {
+        List<ProductDetails> catalog = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            catalog.add(isSubscription(i) ? subscription(i) : oneTimeProduct(i));
+        }
+        return catalog;
+    }
+
+    /**
+     * The fetchProducts argument requesting every product of {@link #catalog}, alternating
+     * between exact (planId, offerId) lookups and wildcard ones.
+     */
+    static JavaOnlyArray productRequests(int size) {
+        JavaOnlyArray requests = new JavaOnlyArray();
+        for (int i = 0; i < size; i++) {
+            JavaOnlyMap request = new JavaOnlyMap();
+            request.putString("id", productId(i));
+
+            if (isSubscription(i)) {
+                request.putString("type", BillingClient.ProductType.SUBS);
+                request.putString("planId", planId(i % PLANS_PER_PRODUCT));
+                request.putString("offerId", i % 4 == 0 ? offerId(OFFERS_PER_PLAN - 1) : null);
+            } else {
+                request.putString("type", BillingClient.ProductType.INAPP);
+                request.putString("planId", null);
+                request.putString("offerId", null);
+            }
+            requests.pushMap(request);
+        }
+        return requests;
+    }
+
+    static List<Purchase> purchases(int size) {
+        List<Purchase> purchases = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                JSONObject json = new JSONObject()
+                        .put("orderId", "GPA.0000-0000-0000-" + i)
+                        .put("packageName", "net.class101.iap.benchmark")
+                        .put("productIds", new JSONArray().put(productId(i)))
+                        .put("purchaseTime", 1_700_000_000_000L + i)
+                        .put("purchaseState", 0)
+                        .put("purchaseToken", "token_" + i + "_" + "x".repeat(120))
+                        .put("quantity", 1)
+                        .put("acknowledged", i % 3 == 0);
+                purchases.add(new Purchase(json.toString(), "signature_" + i));
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return purchases;
+    }
+
+    /**
+     * A configure() argument with {@code width} keys per level, nested {@code depth} levels deep.
+     */
+    static JavaOnlyMap config(int depth, int width) {
+        JavaOnlyMap map = new JavaOnlyMap();
+        for (int i = 0; i < width; i++) {
+            map.putString("string_" + i, "value_" + i);
+            map.putDouble("number_" + i, i);
+            map.putBoolean("boolean_" + i, i % 2 == 0);
+
+            JavaOnlyArray array = new JavaOnlyArray();
+            for (int j = 0; j < width; j++) {
+                array.pushString("item_" + j);
+            }
+            map.putArray("array_" + i, array);
+        }
+        if (depth > 1) {
+            map.putMap("nested", config(depth - 1, width));
+        }
+        return map;
+    }
+
+    private static ProductDetails oneTimeProduct(int index) {
+        return ProductDetailsFixtures.oneTimeProduct(productId(index), 1_200_000_000L, "KRW");
+    }
+
+    private static ProductDetails subscription(int index) {
+        List<String> planIds = new ArrayList<>(PLANS_PER_PRODUCT);
+        for (int plan = 0; plan < PLANS_PER_PRODUCT; plan++) {
+            planIds.add(planId(plan));
+        }
+        List<String> offerIds = new ArrayList<>(OFFERS_PER_PLAN);
+        for (int offer = 0; offer < OFFERS_PER_PLAN; offer++) {
+            offerIds.add(offerId(offer));
+        }
+        return ProductDetailsFixtures.subscription(productId(index), 9_900_000_000L, "KRW", planIds, offerIds);
+    }
+}
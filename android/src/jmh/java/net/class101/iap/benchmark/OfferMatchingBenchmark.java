@@ -0,0 +1,98 @@
+package net.class101.iap.benchmark;
+
+import com.android.billingclient.api.ProductDetails;
+
+import net.class101.iap.internal.catalog.IndexedProduct;
+import net.class101.iap.internal.catalog.ProductDetailsIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing a product details response and resolving (productId, planId, offerId) against it,
+ * as fetchProducts and purchase do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferMatchingBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int catalogSize;
+
+    private List<ProductDetails> catalog;
+    private ProductDetailsIndex index;
+
+    @Setup
+    public void setUp() {
+        catalog = Fixtures.catalog(catalogSize);
+        index = ProductDetailsIndex.of(catalog);
+    }
+
+    @Benchmark
+    public ProductDetailsIndex buildIndex() {
+        return ProductDetailsIndex.of(catalog);
+    }
+
+    @Benchmark
+    public void matchEveryOffer(Blackhole blackhole) {
+        for (int i = 0; i < catalogSize; i++) {
+            IndexedProduct indexedProduct = index.get(Fixtures.productId(i));
+
+            if (!Fixtures.isSubscription(i)) {
+                blackhole.consume(indexedProduct);
+                continue;
+            }
+
+            String planId = Fixtures.planId(i % Fixtures.PLANS_PER_PRODUCT);
+            blackhole.consume(indexedProduct.findOfferToken(planId, Fixtures.offerId(i % Fixtures.OFFERS_PER_PLAN)));
+            blackhole.consume(indexedProduct.findOfferToken(planId, null));
+        }
+    }
+
+    @Benchmark
+    public void matchEveryOfferLinearScan(Blackhole blackhole) {
+        for (int i = 0; i < catalogSize; i++) {
+            ProductDetails productDetails = null;
+            for (ProductDetails candidate : catalog) {
+                if (candidate.getProductId().equals(Fixtures.productId(i))) {
+                    productDetails = candidate;
+                    break;
+                }
+            }
+
+            if (!Fixtures.isSubscription(i)) {
+                blackhole.consume(productDetails);
+                continue;
+            }
+
+            String planId = Fixtures.planId(i % Fixtures.PLANS_PER_PRODUCT);
+            blackhole.consume(findOfferToken(productDetails, planId, Fixtures.offerId(i % Fixtures.OFFERS_PER_PLAN)));
+            blackhole.consume(findOfferToken(productDetails, planId, null));
+        }
+    }
+
+    private static String findOfferToken(ProductDetails productDetails, String planId, String offerId) {
+        for (ProductDetails.SubscriptionOfferDetails offerDetails : productDetails.getSubscriptionOfferDetails()) {
+            if ((planId == null || planId.equals(offerDetails.getBasePlanId())) && (offerId == null || offerId.equals(offerDetails.getOfferId()))) {
+                return offerDetails.getOfferToken();
+            }
+        }
+        return null;
+    }
+}
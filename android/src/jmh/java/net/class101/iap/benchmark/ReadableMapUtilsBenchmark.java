@@ -0,0 +1,68 @@
+package net.class101.iap.benchmark;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+
+import net.class101.iap.internal.utils.ReadableMapUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Config change detection done by every configure() call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadableMapUtilsBenchmark {
+    @Param({"1", "4", "8"})
+    int depth;
+
+    @Param({"4", "32"})
+    int width;
+
+    private JavaOnlyMap config;
+    private JavaOnlyMap equalConfig;
+    private JavaOnlyMap changedConfig;
+
+    @Setup
+    public void setUp() {
+        config = Fixtures.config(depth, width);
+        equalConfig = Fixtures.config(depth, width);
+
+        changedConfig = Fixtures.config(depth, width);
+        JavaOnlyMap deepest = changedConfig;
+        while (deepest.hasKey("nested")) {
+            deepest = (JavaOnlyMap) deepest.getMap("nested");
+        }
+        deepest.putString("string_" + (width - 1), "changed");
+    }
+
+    @Benchmark
+    public long fingerprint() {
+        return ReadableMapUtils.fingerprint(config);
+    }
+
+    @Benchmark
+    public boolean deepEqualsUnchanged() {
+        return ReadableMapUtils.deepEquals(config, equalConfig);
+    }
+
+    @Benchmark
+    public boolean deepEqualsChangedAtDeepestLevel() {
+        return ReadableMapUtils.deepEquals(config, changedConfig);
+    }
+}
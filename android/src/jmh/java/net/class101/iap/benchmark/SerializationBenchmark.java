@@ -0,0 +1,67 @@
+package net.class101.iap.benchmark;
+
+import com.android.billingclient.api.Purchase;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableArray;
+
+import net.class101.iap.internal.catalog.ProductDetailsIndex;
+import net.class101.iap.internal.serialization.BillingSerializer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the fetchProducts and flush payloads. Uses JavaOnly collections, so the cost of
+ * crossing into native maps on device is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int size;
+
+    private final BillingSerializer serializer = new BillingSerializer(JavaOnlyMap::new, JavaOnlyArray::new);
+
+    private JavaOnlyArray productRequests;
+    private ProductDetailsIndex index;
+    private List<Purchase> purchases;
+
+    @Setup
+    public void setUp() {
+        productRequests = Fixtures.productRequests(size);
+        index = ProductDetailsIndex.of(Fixtures.catalog(size));
+        purchases = Fixtures.purchases(size);
+    }
+
+    @Benchmark
+    public WritableArray products() {
+        return serializer.products(productRequests, index);
+    }
+
+    @Benchmark
+    public WritableArray unacknowledgedPurchases() {
+        return serializer.purchases(purchases, true);
+    }
+
+    @Benchmark
+    public WritableArray allPurchases() {
+        return serializer.purchases(purchases, false);
+    }
+}
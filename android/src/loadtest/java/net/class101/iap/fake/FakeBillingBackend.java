@@ -0,0 +1,462 @@
+package net.class101.iap.fake;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import net.class101.iap.fixtures.ProductDetailsFixtures;
+import net.class101.iap.internal.billing.BillingBackend;
+import net.class101.iap.internal.billing.BillingFlowRequest;
+import net.class101.iap.internal.billing.ProductKey;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-process {@link BillingBackend} with a scriptable catalog, injected latency and error rates,
+ * and simulated service disconnects. Callbacks are delivered on a single thread, as Play
+ * delivers them on the main thread. All random draws come from one seeded {@link Random}, so a
+ * run is reproducible for a given seed and call order.
+ */
+public class FakeBillingBackend implements BillingBackend {
+    public enum Operation {
+        CONNECT,
+        QUERY_PRODUCT_DETAILS,
+        QUERY_PURCHASES,
+        LAUNCH_BILLING_FLOW,
+        CONSUME,
+        ACKNOWLEDGE
+    }
+
+    private final Map<String, ProductDetails> catalog;
+    private final Map<Operation, Behavior> behaviors;
+    private final double disconnectRate;
+    private final Random random;
+    private final PurchasesUpdatedListener purchasesUpdatedListener;
+    private final ScheduledExecutorService callbackThread;
+
+    private final Map<String, OwnedPurchase> owned = new LinkedHashMap<>();
+    private BillingClientStateListener stateListener;
+    private boolean isReady;
+    private long nextOrderNumber;
+
+    private FakeBillingBackend(Builder builder, PurchasesUpdatedListener purchasesUpdatedListener) {
+        this.catalog = new LinkedHashMap<>(builder.catalog);
+        this.behaviors = new EnumMap<>(builder.behaviors);
+        this.disconnectRate = builder.disconnectRate;
+        this.random = new Random(builder.seed);
+        this.purchasesUpdatedListener = purchasesUpdatedListener;
+        this.callbackThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rniap-fake-main");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (String productId : builder.ownedProductIds) {
+            addOwned(productId, null);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Drops the connection as Play does when the billing service dies. Pending callbacks still
+     * fire; subsequent calls fail with SERVICE_DISCONNECTED until the connection is restarted.
+     */
+    public void simulateDisconnect() {
+        BillingClientStateListener listener;
+
+        synchronized (this) {
+            if (!isReady) {
+                return;
+            }
+            isReady = false;
+            listener = stateListener;
+        }
+
+        if (listener != null) {
+            callbackThread.execute(listener::onBillingServiceDisconnected);
+        }
+    }
+
+    /**
+     * Tokens of the purchases the fake user currently owns, in purchase order.
+     */
+    public synchronized List<String> getOwnedPurchaseTokens() {
+        return new ArrayList<>(owned.keySet());
+    }
+
+    public void shutdown() {
+        callbackThread.shutdownNow();
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return isReady;
+    }
+
+    @Override
+    public void startConnection(@NonNull BillingClientStateListener listener) {
+        BillingResult result;
+        long delay;
+
+        synchronized (this) {
+            stateListener = listener;
+            result = draw(Operation.CONNECT);
+            delay = latency(Operation.CONNECT);
+        }
+
+        callbackThread.schedule(() -> {
+            synchronized (this) {
+                if (stateListener != listener) {
+                    return;
+                }
+                isReady = result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+            }
+            listener.onBillingSetupFinished(result);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void endConnection() {
+        isReady = false;
+        stateListener = null;
+    }
+
+    @Override
+    public void queryProductDetails(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener) {
+        // As QueryProductDetailsParams.Builder.setProductList does, on the calling thread.
+        for (ProductKey key : products) {
+            if (!key.productType.equals(products.get(0).productType)) {
+                throw new IllegalArgumentException("All products should be of the same product type.");
+            }
+        }
+
+        call(Operation.QUERY_PRODUCT_DETAILS, result -> {
+            if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                listener.onProductDetailsResponse(result, Collections.emptyList());
+                return;
+            }
+
+            List<ProductDetails> productDetailsList = new ArrayList<>();
+            for (ProductKey key : products) {
+                ProductDetails productDetails = catalog.get(key.productId);
+                if (productDetails != null && productDetails.getProductType().equals(key.productType)) {
+                    productDetailsList.add(productDetails);
+                }
+            }
+            listener.onProductDetailsResponse(result, productDetailsList);
+        });
+    }
+
+    @Override
+    public void queryPurchases(@NonNull String productType, @NonNull PurchasesResponseListener listener) {
+        call(Operation.QUERY_PURCHASES, result -> {
+            if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                listener.onQueryPurchasesResponse(result, Collections.emptyList());
+                return;
+            }
+
+            List<Purchase> purchases = new ArrayList<>();
+            synchronized (this) {
+                for (OwnedPurchase purchase : owned.values()) {
+                    if (catalog.get(purchase.productId).getProductType().equals(productType)) {
+                        purchases.add(purchase.toPurchase());
+                    }
+                }
+            }
+            listener.onQueryPurchasesResponse(result, purchases);
+        });
+    }
+
+    /**
+     * Fails synchronously with the injected error, or returns OK and later reports the new
+     * purchase through the {@link PurchasesUpdatedListener}, as if the user confirmed at once.
+     */
+    @Override
+    public BillingResult launchBillingFlow(@Nullable Activity activity, @NonNull BillingFlowRequest request) {
+        BillingResult result;
+        long delay;
+
+        synchronized (this) {
+            result = isReady ? draw(Operation.LAUNCH_BILLING_FLOW) : disconnected();
+            delay = latency(Operation.LAUNCH_BILLING_FLOW);
+        }
+
+        if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+            return result;
+        }
+
+        callbackThread.schedule(() -> {
+            Purchase purchase;
+            synchronized (this) {
+                purchase = addOwned(request.productDetails.getProductId(), request.obfuscatedAccountId).toPurchase();
+            }
+            purchasesUpdatedListener.onPurchasesUpdated(result, Collections.singletonList(purchase));
+        }, delay, TimeUnit.MILLISECONDS);
+
+        return result;
+    }
+
+    @Override
+    public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+        call(Operation.CONSUME, result -> {
+            synchronized (this) {
+                if (result.getResponseCode() == BillingClient.BillingResponseCode.OK && owned.remove(purchaseToken) == null) {
+                    result = notOwned();
+                }
+            }
+            listener.onConsumeResponse(result, purchaseToken);
+        });
+    }
+
+    @Override
+    public void acknowledge(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+        call(Operation.ACKNOWLEDGE, result -> {
+            synchronized (this) {
+                OwnedPurchase purchase = owned.get(purchaseToken);
+
+                if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                    if (purchase == null) {
+                        result = notOwned();
+                    } else {
+                        purchase.isAcknowledged = true;
+                    }
+                }
+            }
+            listener.onAcknowledgePurchaseResponse(result);
+        });
+    }
+
+    private void call(Operation operation, Consumer<BillingResult> callback) {
+        BillingResult result;
+        long delay;
+        boolean isDisconnecting = false;
+
+        synchronized (this) {
+            if (!isReady) {
+                result = disconnected();
+            } else if (disconnectRate > 0 && random.nextDouble() < disconnectRate) {
+                result = disconnected();
+                isDisconnecting = true;
+            } else {
+                result = draw(operation);
+            }
+            delay = latency(operation);
+        }
+
+        if (isDisconnecting) {
+            simulateDisconnect();
+        }
+
+        callbackThread.schedule(() -> callback.accept(result), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private BillingResult draw(Operation operation) {
+        Behavior behavior = behaviors.get(operation);
+
+        if (behavior != null && behavior.errorRate > 0 && random.nextDouble() < behavior.errorRate) {
+            return BillingResult.newBuilder()
+                    .setResponseCode(behavior.errorCode)
+                    .setDebugMessage("Injected " + operation + " error")
+                    .build();
+        }
+        return BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build();
+    }
+
+    private long latency(Operation operation) {
+        Behavior behavior = behaviors.get(operation);
+
+        if (behavior == null || behavior.maxLatencyMillis <= behavior.minLatencyMillis) {
+            return behavior != null ? behavior.minLatencyMillis : 0;
+        }
+        return behavior.minLatencyMillis + (long) (random.nextDouble() * (behavior.maxLatencyMillis - behavior.minLatencyMillis));
+    }
+
+    private OwnedPurchase addOwned(String productId, @Nullable String obfuscatedAccountId) {
+        long orderNumber = nextOrderNumber++;
+        OwnedPurchase purchase = new OwnedPurchase(productId, orderNumber, obfuscatedAccountId);
+        owned.put(purchase.purchaseToken, purchase);
+        return purchase;
+    }
+
+    private static BillingResult disconnected() {
+        return BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+                .setDebugMessage("Fake billing service is disconnected")
+                .build();
+    }
+
+    private static BillingResult notOwned() {
+        return BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.ITEM_NOT_OWNED)
+                .setDebugMessage("Purchase is not owned")
+                .build();
+    }
+
+    private static final class OwnedPurchase {
+        final String productId;
+        final String orderId;
+        final String purchaseToken;
+        final long purchaseTime;
+        @Nullable
+        final String obfuscatedAccountId;
+        boolean isAcknowledged;
+
+        OwnedPurchase(String productId, long orderNumber, @Nullable String obfuscatedAccountId) {
+            this.productId = productId;
+            this.orderId = "GPA.fake-" + orderNumber;
+            this.purchaseToken = "fake-token-" + orderNumber;
+            this.purchaseTime = 1_700_000_000_000L + orderNumber;
+            this.obfuscatedAccountId = obfuscatedAccountId;
+        }
+
+        Purchase toPurchase() {
+            try {
+                JSONObject json = new JSONObject()
+                        .put("orderId", orderId)
+                        .put("packageName", "net.class101.iap.fake")
+                        .put("productIds", new JSONArray().put(productId))
+                        .put("purchaseTime", purchaseTime)
+                        .put("purchaseState", 0)
+                        .put("purchaseToken", purchaseToken)
+                        .put("quantity", 1)
+                        .put("acknowledged", isAcknowledged);
+                if (obfuscatedAccountId != null) {
+                    json.put("obfuscatedAccountId", obfuscatedAccountId);
+                }
+                return new Purchase(json.toString(), "fake-signature");
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class Behavior {
+        final long minLatencyMillis;
+        final long maxLatencyMillis;
+        final double errorRate;
+        final int errorCode;
+
+        Behavior(long minLatencyMillis, long maxLatencyMillis, double errorRate, int errorCode) {
+            this.minLatencyMillis = minLatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+            this.errorRate = errorRate;
+            this.errorCode = errorCode;
+        }
+    }
+
+    public static final class Builder {
+        private final Map<String, ProductDetails> catalog = new LinkedHashMap<>();
+        private final Map<Operation, Behavior> behaviors = new EnumMap<>(Operation.class);
+        private final List<String> ownedProductIds = new ArrayList<>();
+        private double disconnectRate;
+        private long seed;
+
+        private Builder() {
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder addInAppProduct(@NonNull String productId, long priceAmountMicros, @NonNull String currencyCode) {
+            catalog.put(productId, ProductDetailsFixtures.oneTimeProduct(productId, priceAmountMicros, currencyCode));
+            return this;
+        }
+
+        /**
+         * Adds a monthly subscription with one base plan per {@code planIds} entry, each with a
+         * base offer and one developer offer per {@code offerIds} entry.
+         */
+        public Builder addSubscription(@NonNull String productId, long priceAmountMicros, @NonNull String currencyCode, @NonNull List<String> planIds, @NonNull List<String> offerIds) {
+            catalog.put(productId, ProductDetailsFixtures.subscription(productId, priceAmountMicros, currencyCode, planIds, offerIds));
+            return this;
+        }
+
+        /**
+         * Adds a purchase of a catalog product that the fake user already owns, unacknowledged.
+         */
+        public Builder addOwnedPurchase(@NonNull String productId) {
+            if (!catalog.containsKey(productId)) {
+                throw new IllegalArgumentException("Unknown product " + productId);
+            }
+            ownedProductIds.add(productId);
+            return this;
+        }
+
+        public Builder setLatency(@NonNull Operation operation, long minMillis, long maxMillis) {
+            Behavior behavior = behaviors.get(operation);
+            behaviors.put(operation, new Behavior(
+                    minMillis,
+                    maxMillis,
+                    behavior != null ? behavior.errorRate : 0,
+                    behavior != null ? behavior.errorCode : BillingClient.BillingResponseCode.ERROR
+            ));
+            return this;
+        }
+
+        public Builder setLatency(long minMillis, long maxMillis) {
+            for (Operation operation : Operation.values()) {
+                setLatency(operation, minMillis, maxMillis);
+            }
+            return this;
+        }
+
+        public Builder setErrorRate(@NonNull Operation operation, double rate, int responseCode) {
+            Behavior behavior = behaviors.get(operation);
+            behaviors.put(operation, new Behavior(
+                    behavior != null ? behavior.minLatencyMillis : 0,
+                    behavior != null ? behavior.maxLatencyMillis : 0,
+                    rate,
+                    responseCode
+            ));
+            return this;
+        }
+
+        /**
+         * Chance that any billing call finds the service dead: the call fails with
+         * SERVICE_DISCONNECTED and the state listener is told the service disconnected.
+         */
+        public Builder setDisconnectRate(double rate) {
+            this.disconnectRate = rate;
+            return this;
+        }
+
+        public FakeBillingBackend build(@NonNull PurchasesUpdatedListener purchasesUpdatedListener) {
+            return new FakeBillingBackend(this, purchasesUpdatedListener);
+        }
+
+        public BillingBackend.Factory factory() {
+            return (purchasesUpdatedListener, userChoiceBillingListener) -> build(purchasesUpdatedListener);
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package net.class101.iap.loadtest;
+
+import android.app.Activity;
+import android.content.ContextWrapper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AccountIdentifiers;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.JavaScriptModule;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import net.class101.iap.NativeInAppPurchaseModule;
+import net.class101.iap.fake.FakeBillingBackend;
+import net.class101.iap.internal.billing.BillingBackend;
+import net.class101.iap.internal.billing.BillingFlowRequest;
+import net.class101.iap.internal.billing.ProductKey;
+import net.class101.iap.internal.events.BillingEventStream;
+import net.class101.iap.internal.metrics.LatencyHistogram;
+import net.class101.iap.internal.serialization.BillingSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Drives thousands of concurrent exportCatalog, purchase, finalize and flush calls through
+ * {@link NativeInAppPurchaseModule}, with {@link FakeBillingBackend} injected as its billing
+ * backend, and reports throughput and tail latency.
+ * <p>
+ * The module runs on a host {@link ReactApplicationContext} whose JS event emitter hands events
+ * straight back to this class, and whose maps and arrays are JavaOnlyMap and JavaOnlyArray.
+ * fetchProducts answers through events that cannot be told apart per call, so product queries
+ * are driven through exportCatalog, which takes the same coalesced query path and resolves a
+ * promise. A purchase completes when its onPurchases event is emitted.
+ * <p>
+ * Run with {@code ./gradlew loadTest -PloadTestArgs="calls=20000 concurrency=512"}.
+ */
+public final class LoadTest {
+    enum Call {
+        EXPORT_CATALOG("exportCatalog", 40),
+        PURCHASE("purchase", 20),
+        FINALIZE("finalize", 20),
+        FLUSH("flush", 20);
+
+        final String label;
+        final int weight;
+
+        Call(String label, int weight) {
+            this.label = label;
+            this.weight = weight;
+        }
+    }
+
+    private static final long CALL_TIMEOUT_MILLIS = 30_000;
+    private static final int MAX_WARM_UP_ATTEMPTS = 10;
+    private static final String[] PLAN_IDS = {"monthly", "yearly"};
+    private static final String[] OFFER_IDS = {"intro", "winback"};
+
+    private final Options options;
+    private final Random random;
+    private final FakeBillingBackend.Builder backendBuilder;
+    private final NativeInAppPurchaseModule module;
+    private final ScheduledExecutorService timeouts;
+    private volatile FakeBillingBackend backend;
+
+    // Purchases by obfuscated account id until Play reports them, then by purchase token until
+    // the module emits them.
+    private final Map<String, Completion> launchedPurchases = new ConcurrentHashMap<>();
+    private final Map<String, Completion> deliveringPurchases = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<FinalizeTarget> finalizeTargets = new ConcurrentLinkedQueue<>();
+    private final Map<Call, LatencyHistogram> histograms = new EnumMap<>(Call.class);
+    private final AtomicLong skippedFinalizes = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong errorEvents = new AtomicLong();
+
+    private Semaphore permits;
+    private CountDownLatch remaining;
+
+    private LoadTest(Options options) throws IOException {
+        this.options = options;
+        this.random = new Random(options.seed);
+
+        this.backendBuilder = FakeBillingBackend.newBuilder()
+                .setSeed(options.seed)
+                .setLatency(options.minLatencyMillis, options.maxLatencyMillis)
+                .setDisconnectRate(options.disconnectRate);
+
+        for (FakeBillingBackend.Operation operation : FakeBillingBackend.Operation.values()) {
+            if (operation != FakeBillingBackend.Operation.CONNECT) {
+                backendBuilder.setErrorRate(operation, options.errorRate, BillingClient.BillingResponseCode.ERROR);
+            }
+        }
+
+        for (int i = 0; i < options.products; i++) {
+            if (isSubscription(i)) {
+                backendBuilder.addSubscription(productId(i), 9_900_000_000L, "KRW", List.of(PLAN_IDS), List.of(OFFER_IDS));
+            } else {
+                backendBuilder.addInAppProduct(productId(i), 1_200_000_000L, "KRW");
+            }
+        }
+        for (int i = 0; i < options.ownedPurchases; i++) {
+            backendBuilder.addOwnedPurchase(productId(2 * (i % Math.max(1, options.products / 2)) + 1));
+        }
+
+        HostReactContext reactContext = new HostReactContext(
+                Files.createTempDirectory("rniap-loadtest").toFile(),
+                this::onEvent
+        );
+        this.module = new NativeInAppPurchaseModule(
+                reactContext,
+                (purchasesUpdatedListener, userChoiceBillingListener) -> {
+                    backend = backendBuilder.build((billingResult, purchases) -> {
+                        onPurchasesUpdated(billingResult, purchases);
+                        purchasesUpdatedListener.onPurchasesUpdated(billingResult, purchases);
+                    });
+                    return new LaunchObservingBackend(backend, this::onLaunchFailed);
+                },
+                new BillingSerializer(JavaOnlyMap::new, JavaOnlyArray::new)
+        );
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rniap-loadtest-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (Call call : Call.values()) {
+            histograms.put(call, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        LoadTest loadTest = new LoadTest(Options.parse(args));
+        loadTest.configure();
+        loadTest.warmUp();
+        loadTest.run();
+        loadTest.backend.shutdown();
+
+        // The module's disk executors are not daemon threads.
+        System.exit(0);
+    }
+
+    private void configure() throws InterruptedException {
+        // As src/index.ts does once the app subscribes; until then the module buffers events.
+        module.addListener(BillingEventStream.PURCHASES);
+        module.addListener(BillingEventStream.ERROR);
+
+        JavaOnlyMap config = new JavaOnlyMap();
+        config.putInt("workerThreads", options.workerThreads);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> failure = new AtomicReference<>();
+        module.configure(config, new CallbackPromise(value -> latch.countDown(), message -> {
+            failure.set(message);
+            latch.countDown();
+        }));
+        latch.await();
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("configure failed: " + failure.get());
+        }
+
+        for (String token : backend.getOwnedPurchaseTokens()) {
+            finalizeTargets.add(new FinalizeTarget(token, true));
+        }
+    }
+
+    private void warmUp() throws InterruptedException {
+        List<Integer> everyProduct = new ArrayList<>();
+        for (int i = 0; i < options.products; i++) {
+            everyProduct.add(i);
+        }
+
+        for (int attempt = 0; attempt < MAX_WARM_UP_ATTEMPTS; attempt++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            AtomicBoolean isComplete = new AtomicBoolean();
+            module.exportCatalog(productRequests(everyProduct), new CallbackPromise(value -> {
+                isComplete.set(((ReadableArray) value).size() >= options.products);
+                latch.countDown();
+            }, message -> latch.countDown()));
+            latch.await();
+
+            if (isComplete.get()) {
+                return;
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        permits = new Semaphore(options.concurrency);
+        remaining = new CountDownLatch(options.calls);
+
+        int totalWeight = 0;
+        for (Call call : Call.values()) {
+            totalWeight += call.weight;
+        }
+
+        long startedAt = System.nanoTime();
+
+        for (int i = 0; i < options.calls; i++) {
+            permits.acquire();
+
+            int draw = random.nextInt(totalWeight);
+            Call call = Call.EXPORT_CATALOG;
+            for (Call candidate : Call.values()) {
+                if (draw < candidate.weight) {
+                    call = candidate;
+                    break;
+                }
+                draw -= candidate.weight;
+            }
+
+            start(call, i);
+        }
+
+        remaining.await();
+        long elapsedNanos = System.nanoTime() - startedAt;
+
+        report(elapsedNanos);
+    }
+
+    private void start(Call call, int index) {
+        Completion completion = new Completion(histograms.get(call), System.nanoTime(), () -> {
+            permits.release();
+            remaining.countDown();
+        });
+        timeouts.schedule(() -> {
+            if (completion.complete(false)) {
+                timedOut.incrementAndGet();
+            }
+        }, CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        switch (call) {
+            case EXPORT_CATALOG:
+                List<Integer> products = new ArrayList<>();
+                int count = 1 + random.nextInt(5);
+                for (int i = 0; i < count; i++) {
+                    products.add(random.nextInt(options.products));
+                }
+                module.exportCatalog(productRequests(products), completion.promise());
+                break;
+            case PURCHASE:
+                purchase(random.nextInt(options.products), "call-" + index, completion);
+                break;
+            case FINALIZE:
+                finalizeNext(completion);
+                break;
+            case FLUSH:
+                module.flush(null, completion.promise());
+                break;
+        }
+    }
+
+    private ReadableArray productRequests(List<Integer> productIndexes) {
+        JavaOnlyArray requests = new JavaOnlyArray();
+
+        for (int index : productIndexes) {
+            JavaOnlyMap request = new JavaOnlyMap();
+            request.putString("id", productId(index));
+            request.putString("type", isSubscription(index) ? BillingClient.ProductType.SUBS : BillingClient.ProductType.INAPP);
+            request.putString("planId", isSubscription(index) ? PLAN_IDS[index % PLAN_IDS.length] : null);
+            request.putString("offerId", null);
+            requests.pushMap(request);
+        }
+
+        return requests;
+    }
+
+    private void purchase(int productIndex, String accountId, Completion completion) {
+        launchedPurchases.put(accountId, completion);
+
+        JavaOnlyMap args = new JavaOnlyMap();
+        args.putString("obfuscatedAccountId", accountId);
+        module.purchase(productId(productIndex), args);
+    }
+
+    private void onLaunchFailed(@Nullable String accountId) {
+        Completion completion = accountId != null ? launchedPurchases.remove(accountId) : null;
+        if (completion != null) {
+            completion.complete(false);
+        }
+    }
+
+    /**
+     * Called by the fake right before the module's own listener.
+     */
+    private void onPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
+        if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK || purchases == null) {
+            return;
+        }
+
+        for (Purchase purchase : purchases) {
+            AccountIdentifiers accountIdentifiers = purchase.getAccountIdentifiers();
+            Completion completion = accountIdentifiers != null ? launchedPurchases.remove(accountIdentifiers.getObfuscatedAccountId()) : null;
+            if (completion != null) {
+                deliveringPurchases.put(purchase.getPurchaseToken(), completion);
+            }
+        }
+    }
+
+    private void onEvent(String eventName, Object payload) {
+        switch (eventName) {
+            case BillingEventStream.PURCHASES:
+                ReadableArray items = (ReadableArray) payload;
+                for (int i = 0; i < items.size(); i++) {
+                    ReadableMap item = items.getMap(i);
+                    String token = item.getString("purchaseToken");
+                    String productId = item.getArray("productIds").getString(0);
+                    boolean isConsumable = !isSubscription(Integer.parseInt(productId.substring("product_".length())));
+                    finalizeTargets.add(new FinalizeTarget(token, isConsumable));
+
+                    Completion completion = deliveringPurchases.remove(token);
+                    if (completion != null) {
+                        completion.complete(true);
+                    }
+                }
+                break;
+            case BillingEventStream.ERROR:
+                errorEvents.incrementAndGet();
+                break;
+        }
+    }
+
+    private void finalizeNext(Completion completion) {
+        FinalizeTarget target = finalizeTargets.poll();
+        if (target == null) {
+            skippedFinalizes.incrementAndGet();
+            completion.skip();
+            return;
+        }
+
+        JavaOnlyMap purchase = new JavaOnlyMap();
+        purchase.putString("purchaseToken", target.purchaseToken);
+
+        module.finalize(purchase, target.isConsumable, new CallbackPromise(value -> completion.complete(true), message -> {
+            finalizeTargets.add(target);
+            completion.complete(false);
+        }));
+    }
+
+    private void report(long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+
+        AtomicReference<ReadableMap> status = new AtomicReference<>();
+        module.getConnectionStatus(new CallbackPromise(value -> status.set((ReadableMap) value), message -> {
+        }));
+
+        System.out.printf("calls=%d concurrency=%d products=%d seed=%d latency=%d-%dms errorRate=%.4f disconnectRate=%.4f%n",
+                options.calls, options.concurrency, options.products, options.seed,
+                options.minLatencyMillis, options.maxLatencyMillis, options.errorRate, options.disconnectRate);
+        System.out.printf("elapsed %.2f s, throughput %.1f calls/s%n", elapsedSeconds, options.calls / elapsedSeconds);
+        System.out.printf("%-14s %8s %8s %9s %9s %9s %9s %9s%n", "call", "count", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms");
+
+        for (Call call : Call.values()) {
+            LatencyHistogram.Snapshot snapshot = histograms.get(call).snapshot(false);
+            System.out.printf("%-14s %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    call.label, snapshot.count, snapshot.errorCount, snapshot.meanMillis,
+                    snapshot.p50Millis, snapshot.p90Millis, snapshot.p99Millis, snapshot.maxMillis);
+        }
+
+        System.out.printf("skipped finalizes %d, timed out %d, error events %d, reconnect attempts %d, max queue depth %d, circuit %s%n",
+                skippedFinalizes.get(), timedOut.get(), errorEvents.get(),
+                status.get().getInt("reconnectAttempts"), status.get().getInt("maxQueueDepth"), status.get().getString("circuitState"));
+    }
+
+    private static String productId(int index) {
+        return "product_" + index;
+    }
+
+    private static boolean isSubscription(int index) {
+        return index % 2 == 0;
+    }
+
+    /**
+     * Stands in for the app's ReactApplicationContext: files go to a temporary directory, there
+     * is always a current activity, and events are handed to {@code emitter}.
+     */
+    private static final class HostReactContext extends ReactApplicationContext {
+        private final File directory;
+        private final DeviceEventManagerModule.RCTDeviceEventEmitter emitter;
+        private final Activity activity = new Activity();
+
+        HostReactContext(File directory, DeviceEventManagerModule.RCTDeviceEventEmitter emitter) {
+            super(new ContextWrapper(null));
+            this.directory = directory;
+            this.emitter = emitter;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return directory;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return directory;
+        }
+
+        @Override
+        public boolean hasActiveReactInstance() {
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends JavaScriptModule> T getJSModule(Class<T> jsInterface) {
+            return (T) emitter;
+        }
+
+        @Override
+        public Activity getCurrentActivity() {
+            return activity;
+        }
+    }
+
+    /**
+     * Passes every call through, and reports billing flows that fail to launch, since Play does
+     * not report those through the purchases listener.
+     */
+    private static final class LaunchObservingBackend implements BillingBackend {
+        private final BillingBackend delegate;
+        private final Consumer<String> onLaunchFailed;
+
+        LaunchObservingBackend(BillingBackend delegate, Consumer<String> onLaunchFailed) {
+            this.delegate = delegate;
+            this.onLaunchFailed = onLaunchFailed;
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void startConnection(@NonNull BillingClientStateListener listener) {
+            delegate.startConnection(listener);
+        }
+
+        @Override
+        public void endConnection() {
+            delegate.endConnection();
+        }
+
+        @Override
+        public void queryProductDetails(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener) {
+            delegate.queryProductDetails(products, listener);
+        }
+
+        @Override
+        public void queryPurchases(@NonNull String productType, @NonNull PurchasesResponseListener listener) {
+            delegate.queryPurchases(productType, listener);
+        }
+
+        @Override
+        public void prepareBillingFlow(@NonNull BillingFlowRequest request) {
+            delegate.prepareBillingFlow(request);
+        }
+
+        @Override
+        public BillingResult launchBillingFlow(@Nullable Activity activity, @NonNull BillingFlowRequest request) {
+            BillingResult result = delegate.launchBillingFlow(activity, request);
+
+            if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                onLaunchFailed.accept(request.obfuscatedAccountId);
+            }
+            return result;
+        }
+
+        @Override
+        public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+            delegate.consume(purchaseToken, listener);
+        }
+
+        @Override
+        public void acknowledge(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+            delegate.acknowledge(purchaseToken, listener);
+        }
+    }
+
+    private static final class CallbackPromise implements Promise {
+        private final Consumer<Object> onResolve;
+        private final Consumer<String> onReject;
+
+        CallbackPromise(Consumer<Object> onResolve, Consumer<String> onReject) {
+            this.onResolve = onResolve;
+            this.onReject = onReject;
+        }
+
+        @Override
+        public void resolve(@Nullable Object value) {
+            onResolve.accept(value);
+        }
+
+        @Override
+        public void reject(String code, String message) {
+            onReject.accept(message);
+        }
+
+        @Override
+        public void reject(String code, Throwable throwable) {
+            onReject.accept(throwable.getMessage());
+        }
+
+        @Override
+        public void reject(String code, String message, Throwable throwable) {
+            onReject.accept(message);
+        }
+
+        @Override
+        public void reject(Throwable throwable) {
+            onReject.accept(throwable.getMessage());
+        }
+
+        @Override
+        public void reject(Throwable throwable, WritableMap userInfo) {
+            onReject.accept(throwable.getMessage());
+        }
+
+        @Override
+        public void reject(String code, @NonNull WritableMap userInfo) {
+            onReject.accept(code);
+        }
+
+        @Override
+        public void reject(String code, Throwable throwable, WritableMap userInfo) {
+            onReject.accept(throwable.getMessage());
+        }
+
+        @Override
+        public void reject(String code, String message, @NonNull WritableMap userInfo) {
+            onReject.accept(message);
+        }
+
+        @Override
+        public void reject(String code, String message, Throwable throwable, WritableMap userInfo) {
+            onReject.accept(message);
+        }
+
+        @Override
+        @Deprecated
+        public void reject(String message) {
+            onReject.accept(message);
+        }
+    }
+
+    private static final class FinalizeTarget {
+        final String purchaseToken;
+        final boolean isConsumable;
+
+        FinalizeTarget(String purchaseToken, boolean isConsumable) {
+            this.purchaseToken = purchaseToken;
+            this.isConsumable = isConsumable;
+        }
+    }
+
+    private static final class Completion {
+        final LatencyHistogram histogram;
+        final long startedAt;
+        final Runnable onDone;
+        final AtomicBoolean isDone = new AtomicBoolean();
+
+        Completion(LatencyHistogram histogram, long startedAt, Runnable onDone) {
+            this.histogram = histogram;
+            this.startedAt = startedAt;
+            this.onDone = onDone;
+        }
+
+        boolean complete(boolean isOk) {
+            if (!isDone.compareAndSet(false, true)) {
+                return false;
+            }
+            histogram.record(System.nanoTime() - startedAt, !isOk);
+            onDone.run();
+            return true;
+        }
+
+        void skip() {
+            if (isDone.compareAndSet(false, true)) {
+                onDone.run();
+            }
+        }
+
+        Promise promise() {
+            return new CallbackPromise(value -> complete(true), message -> complete(false));
+        }
+    }
+
+    private static final class Options {
+        int calls = 10_000;
+        int concurrency = 256;
+        int products = 200;
+        int ownedPurchases = 500;
+        long seed = 1;
+        long minLatencyMillis = 5;
+        long maxLatencyMillis = 40;
+        double errorRate = 0.01;
+        double disconnectRate = 0.001;
+        int workerThreads = 1;
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Expected key=value, got " + arg);
+                }
+                values.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+
+            Options options = new Options();
+            options.calls = Integer.parseInt(values.getOrDefault("calls", String.valueOf(options.calls)));
+            options.concurrency = Integer.parseInt(values.getOrDefault("concurrency", String.valueOf(options.concurrency)));
+            options.products = Integer.parseInt(values.getOrDefault("products", String.valueOf(options.products)));
+            options.ownedPurchases = Integer.parseInt(values.getOrDefault("ownedPurchases", String.valueOf(options.ownedPurchases)));
+            options.seed = Long.parseLong(values.getOrDefault("seed", String.valueOf(options.seed)));
+            options.minLatencyMillis = Long.parseLong(values.getOrDefault("minLatency", String.valueOf(options.minLatencyMillis)));
+            options.maxLatencyMillis = Long.parseLong(values.getOrDefault("maxLatency", String.valueOf(options.maxLatencyMillis)));
+            options.errorRate = Double.parseDouble(values.getOrDefault("errorRate", String.valueOf(options.errorRate)));
+            options.disconnectRate = Double.parseDouble(values.getOrDefault("disconnectRate", String.valueOf(options.disconnectRate)));
+            options.workerThreads = Integer.parseInt(values.getOrDefault("workerThreads", String.valueOf(options.workerThreads)));
+            return options;
+        }
+    }
+}
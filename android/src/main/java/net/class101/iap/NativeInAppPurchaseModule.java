@@ -1,468 +1,1206 @@
 package net.class101.iap;
 
+import android.app.Activity;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.BillingClient;
-import com.android.billingclient.api.BillingClientStateListener;
-import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
-import com.android.billingclient.api.ConsumeParams;
-import com.android.billingclient.api.PendingPurchasesParams;
 import com.android.billingclient.api.ProductDetails;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.PurchasesUpdatedListener;
-import com.android.billingclient.api.QueryProductDetailsParams;
-import com.android.billingclient.api.QueryPurchasesParams;
 import com.android.billingclient.api.UserChoiceBillingListener;
 import com.android.billingclient.api.UserChoiceDetails;
-import com.facebook.common.internal.ImmutableList;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.bridge.WritableNativeArray;
-
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import net.class101.iap.internal.billing.BillingBackend;
+import net.class101.iap.internal.billing.BillingCircuitBreaker;
+import net.class101.iap.internal.billing.BillingConnectionManager;
+import net.class101.iap.internal.billing.BillingFlowRequest;
+import net.class101.iap.internal.billing.BillingResponseCodes;
+import net.class101.iap.internal.billing.BillingRetryPolicy;
+import net.class101.iap.internal.billing.FinalizePipeline;
+import net.class101.iap.internal.billing.PlayBillingBackend;
+import net.class101.iap.internal.billing.ProductDetailsQueryCoalescer;
+import net.class101.iap.internal.billing.ProductKey;
+import net.class101.iap.internal.billing.PurchasesQuery;
+import net.class101.iap.internal.catalog.CachedProduct;
+import net.class101.iap.internal.catalog.IndexedProduct;
+import net.class101.iap.internal.catalog.ProductCatalog;
+import net.class101.iap.internal.catalog.ProductCatalogCache;
+import net.class101.iap.internal.catalog.ProductDetailsIndex;
+import net.class101.iap.internal.entitlements.EntitlementTable;
+import net.class101.iap.internal.events.BillingEventStream;
+import net.class101.iap.internal.journal.DeliveredPurchaseSet;
+import net.class101.iap.internal.journal.PurchaseJournal;
+import net.class101.iap.internal.metrics.BillingMetrics;
+import net.class101.iap.internal.metrics.BillingTrace;
+import net.class101.iap.internal.metrics.LatencyHistogram;
+import net.class101.iap.internal.serialization.BillingSerializer;
+import net.class101.iap.internal.serialization.CompactPayload;
 import net.class101.iap.internal.utils.ReadableMapUtils;
+import net.class101.iap.internal.utils.WorkerExecutor;
+import net.class101.iap.internal.verification.PurchaseVerifier;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class NativeInAppPurchaseModule extends NativeInAppPurchaseModuleSpec implements PurchasesUpdatedListener, UserChoiceBillingListener {
-    private final ReactApplicationContext reactContext;
+    private static final int DEFAULT_PRODUCT_CACHE_SIZE = 500;
+    private static final long PRODUCT_QUERY_WINDOW_MILLIS = 16;
+    private static final int PRODUCT_QUERY_CHUNK_SIZE = 20;
+    private static final int MAX_PENDING_OPERATIONS = 64;
+    private static final int DEFAULT_FINALIZE_CONCURRENCY = 4;
+    private static final int DEFAULT_FINALIZE_MAX_RETRIES = 3;
+    private static final int MAX_BUFFERED_EVENTS = 100;
+    private static final int DEFAULT_WORKER_THREADS = 1;
+    private static final int MAX_PREPARED_PURCHASES = 256;
+    private static final int DEFAULT_ENTITLEMENT_REFRESH_SECONDS = 900;
+    private static final long PRODUCT_REVALIDATE_MILLIS = 60_000;
+    private static final int TRACE_CAPACITY = 512;
+    private static final Set<String> RECEIPT_KEYS = Collections.singleton("receipt");
 
-    private final Map<String, ProductDetails> productDetailsMap;
+    private final ReactApplicationContext reactContext;
 
-    private BillingClient client;
+    private final ProductCatalog productCatalog;
+    // Least recently used requests are dropped first, so the products being bought stay prepared.
+    private final Map<List<String>, BillingFlowRequest> preparedPurchases = new LinkedHashMap<List<String>, BillingFlowRequest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, BillingFlowRequest> eldest) {
+            return size() > MAX_PREPARED_PURCHASES;
+        }
+    };
+    private final ProductCatalogCache catalogCache;
+    private final PurchaseJournal purchaseJournal;
+    private final DeliveredPurchaseSet deliveredPurchases;
+    private final ProductDetailsQueryCoalescer productQueryCoalescer;
+    private final BillingConnectionManager connectionManager;
+    private final BillingEventStream eventStream;
+    private final WorkerExecutor workerExecutor;
+    private final BillingMetrics metrics;
+    private final BillingRetryPolicy retryPolicy;
+    private final BillingTrace trace;
+    private final BillingSerializer serializer;
+    private final BillingSerializer compactSerializer;
+    private final PurchaseVerifier purchaseVerifier;
+    private final EntitlementTable entitlementTable;
+    private final BillingBackend.Factory backendFactory;
+
+    private final Object configLock = new Object();
     private ReadableMap appliedConfig;
-
-    private Callback fetchProductsListener;
-    private Callback purchaseListener;
-    private Callback errorListener;
-    private Callback alternativeBillingFlowListener;
+    private long appliedConfigFingerprint;
+    private ReadableMap pendingConfig;
+    private long pendingConfigFingerprint;
+    private volatile boolean isCompactPayload;
+    private volatile boolean isCompactReceiptIncluded;
+    private volatile List<ProductKey> prefetchKeys = Collections.emptyList();
+    // Purchase updates are attributed to the billing flow launched last.
+    private volatile long lastLaunchTraceId = BillingTrace.NO_CORRELATION;
+    @Nullable
+    private List<Promise> pendingConfigPromises;
 
     public NativeInAppPurchaseModule(ReactApplicationContext reactContext) {
+        this(reactContext, PlayBillingBackend.factory(reactContext));
+    }
+
+    public NativeInAppPurchaseModule(ReactApplicationContext reactContext, BillingBackend.Factory backendFactory) {
+        this(reactContext, backendFactory, new BillingSerializer(Arguments::createMap, Arguments::createArray));
+    }
+
+    /**
+     * @param serializer builds every map and array handed to JS; off-device callers pass one
+     *                   backed by JavaOnlyMap, since the native ones need the React Native runtime.
+     */
+    public NativeInAppPurchaseModule(ReactApplicationContext reactContext, BillingBackend.Factory backendFactory, BillingSerializer serializer) {
         super(reactContext);
         this.reactContext = reactContext;
-        this.productDetailsMap = new HashMap<>();
+        this.backendFactory = backendFactory;
+        this.productCatalog = new ProductCatalog();
+        this.metrics = new BillingMetrics();
+        this.trace = new BillingTrace(TRACE_CAPACITY);
+        this.retryPolicy = new BillingRetryPolicy();
+        this.retryPolicy.setObserver((operation, responseCode, delayMillis) ->
+                trace.record(BillingTrace.Operation.RETRY, BillingTrace.NO_CORRELATION, responseCode, TimeUnit.MILLISECONDS.toNanos(delayMillis))
+        );
+        this.serializer = serializer;
+        this.compactSerializer = new BillingSerializer(JavaOnlyMap::new, JavaOnlyArray::new);
+        this.purchaseVerifier = new PurchaseVerifier();
+        this.entitlementTable = new EntitlementTable();
+        this.workerExecutor = new WorkerExecutor(DEFAULT_WORKER_THREADS);
+        this.connectionManager = new BillingConnectionManager(MAX_PENDING_OPERATIONS);
+        this.retryPolicy.setConnector(connectionManager::execute);
+        this.connectionManager.setObserver(new BillingConnectionManager.Observer() {
+            @Override
+            public void onSetupFinished(long elapsedNanos, int responseCode) {
+                metrics.record(BillingMetrics.Metric.CONNECTION_SETUP, elapsedNanos, responseCode != BillingClient.BillingResponseCode.OK);
+                trace.record(BillingTrace.Operation.CONNECT, BillingTrace.NO_CORRELATION, responseCode, elapsedNanos);
+            }
+
+            @Override
+            public void onQueueWait(long waitNanos) {
+                metrics.record(BillingMetrics.Metric.CONNECTION_QUEUE_WAIT, waitNanos);
+            }
+        });
+        this.eventStream = new BillingEventStream((eventName, payload) -> {
+            // Left to the stream's buffer until JS is running again, e.g. during a reload.
+            if (!reactContext.hasActiveReactInstance()) {
+                return false;
+            }
+
+            long startedAt = System.nanoTime();
+            reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, payload);
+            metrics.recordSince(BillingMetrics.Metric.BRIDGE_EMIT, startedAt, false);
+            trace.recordSince(deliveryOperation(eventName), BillingTrace.NO_CORRELATION, BillingClient.BillingResponseCode.OK, startedAt);
+            return true;
+        }, MAX_BUFFERED_EVENTS);
+        this.catalogCache = new ProductCatalogCache(new File(reactContext.getCacheDir(), "rniap_product_catalog.json"));
+        this.purchaseJournal = new PurchaseJournal(new File(reactContext.getFilesDir(), "rniap_purchase_journal.log"));
+        this.deliveredPurchases = new DeliveredPurchaseSet(new File(reactContext.getFilesDir(), "rniap_delivered_purchases.bin"));
+        // A connection failure only fails the waiting calls. The ones that report errors as events
+        // connect first through tryConnect, which sends the single CONNECTION error.
+        this.productQueryCoalescer = new ProductDetailsQueryCoalescer(
+                (productList, listener) -> connectionManager.execute(
+                        () -> {
+                            long startedAt = System.nanoTime();
+                            long traceId = trace.newCorrelationId();
+
+                            connectionManager.getBackend().queryProductDetails(productList, (result, productDetailsList) -> {
+                                metrics.recordSince(BillingMetrics.Metric.QUERY_PRODUCT_DETAILS, startedAt, result.getResponseCode() != BillingClient.BillingResponseCode.OK);
+                                trace.recordSince(BillingTrace.Operation.QUERY_PRODUCT_DETAILS, traceId, result.getResponseCode(), startedAt);
+                                listener.onProductDetailsResponse(result, productDetailsList);
+                            });
+                        },
+                        result -> {
+                            trace.record(BillingTrace.Operation.CONNECTION_REJECTED, BillingTrace.NO_CORRELATION, result.getResponseCode(), 0);
+                            listener.onProductDetailsResponse(result, new ArrayList<>());
+                        }
+                ),
+                PRODUCT_QUERY_WINDOW_MILLIS,
+                PRODUCT_QUERY_CHUNK_SIZE
+        );
     }
 
     @Override
     public void configure(@Nullable ReadableMap config, Promise promise) {
-        if (client != null) {
-            if (client.isReady() && !hasChangedOptions(appliedConfig, config)) {
-                promise.resolve(true);
+        long fingerprint = ReadableMapUtils.fingerprint(config);
+        List<Promise> superseded;
+
+        synchronized (configLock) {
+            if (pendingConfigPromises != null && isSameConfig(pendingConfigFingerprint, pendingConfig, fingerprint, config)) {
+                pendingConfigPromises.add(promise);
                 return;
             }
 
-            client.endConnection();
-            client = null;
-        }
-        this.appliedConfig = config;
+            if (connectionManager.getBackend() == null) {
+                applyConfig(config, fingerprint);
+                connectionManager.attach(createBackend(config));
 
-        BillingClient.Builder builder = BillingClient.newBuilder(reactContext)
-                .setListener(this)
-                .enablePendingPurchases(PendingPurchasesParams.newBuilder().enableOneTimeProducts().build());
+                connectionManager.execute(
+                        () -> {
+                            promise.resolve(true);
+                            onConfigured();
+                        },
+                        result -> promise.reject("configure", "Billing service setup failed with code " + result.getResponseCode())
+                );
+                return;
+            }
 
-        var isAlternativeBillingEnable = Optional.ofNullable(config).map(it -> it.getBoolean("isAlternativeBillingEnable")).orElse(false);
+            if (pendingConfigPromises == null && isSameConfig(appliedConfigFingerprint, appliedConfig, fingerprint, config)) {
+                connectionManager.execute(
+                        () -> promise.resolve(true),
+                        result -> promise.reject("configure", "Billing service setup failed with code " + result.getResponseCode())
+                );
+                return;
+            }
+
+            // The current client keeps serving until the new one has connected.
+            superseded = pendingConfigPromises;
+            pendingConfig = config;
+            pendingConfigFingerprint = fingerprint;
+            pendingConfigPromises = new ArrayList<>();
+            pendingConfigPromises.add(promise);
 
-        if (isAlternativeBillingEnable) {
-            builder.enableUserChoiceBilling(this);
+            connectionManager.swap(createBackend(config), result -> onConfigSwapFinished(config, fingerprint, result));
         }
 
-        client = builder.build();
+        if (superseded != null) {
+            for (Promise supersededPromise : superseded) {
+                supersededPromise.reject("configure", "Superseded by a newer configuration");
+            }
+        }
+    }
 
-        client.startConnection(new BillingClientStateListener() {
-            @Override
-            public void onBillingSetupFinished(@NonNull BillingResult result) {
-                int code = result.getResponseCode();
+    @Override
+    public void fetchProducts(ReadableArray products) {
+        long calledAt = System.nanoTime();
+        boolean isCompact = isCompactPayload;
+        List<ProductKey> keys = toProductKeys(products);
+        List<String> productIds = new ArrayList<>();
+        for (ProductKey key : keys) {
+            productIds.add(key.productId);
+        }
 
-                if (code == BillingClient.BillingResponseCode.OK) {
-                    promise.resolve(true);
-                } else {
-                    promise.reject("configure", "Billing service setup failed with code " + code);
-                }
+        // Products already in the catalog, e.g. from the configure prefetch, are answered right
+        // away. Stale ones are queried again and the refreshed products are sent as another event.
+        ProductCatalog.Snapshot snapshot = productCatalog.snapshot();
+        WritableArray items = null;
+        if (!keys.isEmpty() && snapshot.containsAll(productIds, calledAt, Long.MAX_VALUE)) {
+            items = isCompact ? compactSerializer.products(products, snapshot) : serializer.products(products, snapshot);
+
+            if (snapshot.containsAll(productIds, calledAt, TimeUnit.MILLISECONDS.toNanos(PRODUCT_REVALIDATE_MILLIS))) {
+                eventStream.emit(BillingEventStream.FETCH_PRODUCTS, isCompact ? CompactPayload.encode(items) : items);
+                metrics.recordSince(BillingMetrics.Metric.CALL_FETCH_PRODUCTS, calledAt, false);
+                return;
             }
+        } else {
+            items = buildCachedProductsJSON(products, isCompact ? compactSerializer : serializer);
+        }
 
-            @Override
-            public void onBillingServiceDisconnected() {
-                promise.reject("configure", "Billing service disconnected");
+        boolean isAlreadyAnswered = items != null;
+        if (isAlreadyAnswered) {
+            eventStream.emit(BillingEventStream.FETCH_PRODUCTS, isCompact ? CompactPayload.encode(items) : items);
+        }
+
+        tryConnect(() -> productQueryCoalescer.query(keys, (billingResult, productDetailsList) -> workerExecutor.execute(
+                () -> onProductDetailsResponse(products, isCompact, isAlreadyAnswered, calledAt, billingResult, productDetailsList)
+        )), result -> metrics.recordSince(BillingMetrics.Metric.CALL_FETCH_PRODUCTS, calledAt, true));
+    }
+
+    @Override
+    public void exportCatalog(ReadableArray products, Promise promise) {
+        long calledAt = System.nanoTime();
+
+        productQueryCoalescer.query(toProductKeys(products), (billingResult, productDetailsList) -> workerExecutor.execute(() -> {
+            if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                metrics.recordSince(BillingMetrics.Metric.CALL_EXPORT_CATALOG, calledAt, true);
+                promise.reject("exportCatalog", billingResult.getDebugMessage());
+                return;
             }
-        });
+
+            long serializeStartedAt = System.nanoTime();
+            WritableArray items = serializer.catalog(productDetailsList);
+            metrics.recordSince(BillingMetrics.Metric.SERIALIZE_PRODUCTS, serializeStartedAt, false);
+
+            publishProducts(ProductDetailsIndex.of(productDetailsList), productDetailsList, calledAt);
+
+            promise.resolve(items);
+            metrics.recordSince(BillingMetrics.Metric.CALL_EXPORT_CATALOG, calledAt, false);
+        }));
     }
 
     @Override
-    public void fetchProducts(ReadableArray products) {
-        tryConnect(() -> {
-            ImmutableList<QueryProductDetailsParams.Product> productList = ImmutableList.of();
+    public void flush(@Nullable ReadableMap options, Promise promise) {
+        boolean isStreaming = options != null && options.hasKey("stream") && options.getBoolean("stream");
+        boolean isLocal = options != null && options.hasKey("local") && options.getBoolean("local");
+        boolean isCompact = options != null && options.hasKey("compact") && options.getBoolean("compact");
+        boolean isReceiptIncluded = options != null && options.hasKey("includeReceipts") && options.getBoolean("includeReceipts");
+        boolean isVerifying = options != null && options.hasKey("verify") && options.getBoolean("verify");
+        long calledAt = System.nanoTime();
+
+        if (isVerifying && !purchaseVerifier.isAvailable()) {
+            promise.reject("flush", "No valid publicKey is configured");
+            return;
+        }
 
+        if (isLocal) {
+            workerExecutor.execute(() -> {
+                List<Purchase> purchases = purchaseJournal.getUnfinalizedPurchases();
+                Set<String> verifiedTokens = isVerifying ? purchaseVerifier.verify(purchases) : null;
 
-            for (int i = 0; i < products.size(); i++) {
-                ReadableMap product = products.getMap(i);
+                promise.resolve(purchasesPayload(purchases, false, verifiedTokens, isCompact, isReceiptIncluded));
+                metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH, calledAt, false);
+            });
+            return;
+        }
 
-                String productId = product.getString("id");
-                String productType = product.getString("type");
+        tryConnect(() -> PurchasesQuery.run(connectionManager.getBackend(), PurchasesQuery.ALL_TYPES, new PurchasesQuery.Listener() {
+            final long queryStartedAt = System.nanoTime();
+            final long traceId = trace.newCorrelationId();
 
-                if (productId == null || productType == null) {
-                    continue;
-                }
+            @Override
+            public void onTypeFinished(@NonNull String productType, @NonNull List<Purchase> purchases) {
+                metrics.recordSince(BillingMetrics.Metric.QUERY_PURCHASES, queryStartedAt, false);
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, BillingClient.BillingResponseCode.OK, queryStartedAt);
 
-                if (!productType.equals(BillingClient.ProductType.SUBS) && !productType.equals(BillingClient.ProductType.INAPP)) {
-                    continue;
+                if (!isStreaming) {
+                    return;
                 }
 
-                productList.add(
-                        QueryProductDetailsParams.Product.newBuilder()
-                                .setProductId(productId)
-                                .setProductType(productType)
-                                .build()
-                );
+                workerExecutor.execute(() -> {
+                    for (Purchase purchase : purchases) {
+                        if (!purchase.isAcknowledged()) {
+                            Set<String> verifiedTokens = isVerifying ? purchaseVerifier.verify(purchases) : null;
+                            eventStream.emit(BillingEventStream.PURCHASES, purchasesPayload(purchases, true, verifiedTokens, isCompact, isReceiptIncluded));
+                            return;
+                        }
+                    }
+                });
             }
 
-            QueryProductDetailsParams params = QueryProductDetailsParams.newBuilder()
-                    .setProductList(productList)
-                    .build();
+            @Override
+            public void onComplete(@NonNull List<Purchase> purchases) {
+                workerExecutor.execute(() -> {
+                    recordQueriedPurchases(purchases, queryStartedAt);
 
-            final WritableArray items = new WritableNativeArray();
+                    // Streamed purchases were already delivered to onPurchase, so they are not
+                    // resolved a second time.
+                    List<Purchase> unstreamed = isStreaming ? Collections.emptyList() : purchases;
+                    Set<String> verifiedTokens = isVerifying ? purchaseVerifier.verify(unstreamed) : null;
 
-            // Query in-app items
-            client.queryProductDetailsAsync(params, (billingResult, productDetailsList) -> {
-                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                    sendBillingError("FETCH_PRODUCTS", billingResult);
-                    return;
-                }
+                    long serializeStartedAt = System.nanoTime();
+                    Object payload = purchasesPayload(unstreamed, true, verifiedTokens, isCompact, isReceiptIncluded);
+                    metrics.recordSince(BillingMetrics.Metric.SERIALIZE_PURCHASES, serializeStartedAt, false);
 
-                for (int i = 0; i < products.size(); i++) {
-                    ReadableMap product = products.getMap(i);
+                    promise.resolve(payload);
+                    metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH, calledAt, false);
+                });
+            }
 
-                    String productId = product.getString("id");
-                    String productType = product.getString("type");
-                    String planId = product.getString("planId");
-                    String offerId = product.getString("offerId");
+            @Override
+            public void onError(@NonNull BillingResult result) {
+                metrics.recordSince(BillingMetrics.Metric.QUERY_PURCHASES, queryStartedAt, true);
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, result.getResponseCode(), queryStartedAt);
+                metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH, calledAt, true);
+                promise.reject("flush", result.getDebugMessage());
+            }
+        }), result -> {
+            metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH, calledAt, true);
+            promise.reject("flush", result.getDebugMessage());
+        });
+    }
 
-                    if (productId == null || productType == null) {
-                        continue;
-                    }
+    @Override
+    public void flushChanges(@Nullable ReadableMap options, Promise promise) {
+        boolean isReset = options != null && options.hasKey("reset") && options.getBoolean("reset");
+        long calledAt = System.nanoTime();
 
-                    if (!productType.equals(BillingClient.ProductType.SUBS) && !productType.equals(BillingClient.ProductType.INAPP)) {
-                        continue;
-                    }
+        tryConnect(() -> PurchasesQuery.run(connectionManager.getBackend(), PurchasesQuery.ALL_TYPES, new PurchasesQuery.Listener() {
+            final long queryStartedAt = System.nanoTime();
+            final long traceId = trace.newCorrelationId();
 
-                    Optional<ProductDetails> productDetails = productDetailsList.stream().filter(details -> details.getProductId().equals(productId)).findFirst();
-                    if (!productDetails.isPresent()) {
-                        continue;
-                    }
+            @Override
+            public void onTypeFinished(@NonNull String productType, @NonNull List<Purchase> purchases) {
+                metrics.recordSince(BillingMetrics.Metric.QUERY_PURCHASES, queryStartedAt, false);
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, BillingClient.BillingResponseCode.OK, queryStartedAt);
+            }
 
-                    if (productType.equals(BillingClient.ProductType.INAPP)) {
-                        WritableMap item = Arguments.createMap();
-                        item.putString("productId", productDetails.get().getProductId());
-                        item.putString("offerId", offerId);
-                        item.putString("title", productDetails.get().getTitle());
-                        item.putString("description", productDetails.get().getDescription());
-
-                        ProductDetails.OneTimePurchaseOfferDetails offerDetails = productDetails.get().getOneTimePurchaseOfferDetails();
-                        if (offerDetails != null) {
-                            item.putString("price", offerDetails.getFormattedPrice());
-                            item.putString("currency", offerDetails.getPriceCurrencyCode());
+            @Override
+            public void onComplete(@NonNull List<Purchase> purchases) {
+                workerExecutor.execute(() -> {
+                    recordQueriedPurchases(purchases, queryStartedAt);
+
+                    List<Purchase> unacknowledged = new ArrayList<>();
+                    for (Purchase purchase : purchases) {
+                        if (!purchase.isAcknowledged()) {
+                            unacknowledged.add(purchase);
                         }
+                    }
 
-                        items.pushMap(item);
-                        continue;
+                    if (isReset) {
+                        deliveredPurchases.clear();
                     }
+                    List<Purchase> changed = deliveredPurchases.update(unacknowledged);
 
-                    List<ProductDetails.SubscriptionOfferDetails> offerDetailsList = productDetails.get().getSubscriptionOfferDetails();
+                    long serializeStartedAt = System.nanoTime();
+                    WritableMap result = serializer.createMap();
+                    result.putArray("purchases", serializer.purchases(changed, false));
+                    result.putInt("unfinalizedCount", unacknowledged.size());
+                    metrics.recordSince(BillingMetrics.Metric.SERIALIZE_PURCHASES, serializeStartedAt, false);
 
-                    if (offerDetailsList == null || offerDetailsList.isEmpty()) {
-                        continue;
-                    }
+                    promise.resolve(result);
+                    metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH_CHANGES, calledAt, false);
+                });
+            }
 
-                    Optional<ProductDetails.SubscriptionOfferDetails> offerDetails = offerDetailsList.stream()
-                            .filter(details -> planId == null || details.getBasePlanId().equals(planId))
-                            .filter(details -> offerId == null || (details.getOfferId() != null && details.getOfferId().equals(offerId)))
-                            .findFirst();
-
-                    if (offerDetails.isPresent()) {
-                        WritableMap item = Arguments.createMap();
-                        item.putString("productId", productDetails.get().getProductId());
-                        item.putString("planId", planId);
-                        item.putString("offerId", offerId);
-                        item.putString("title", productDetails.get().getTitle());
-                        item.putString("description", productDetails.get().getDescription());
-                        item.putString("price", offerDetails.get().getPricingPhases().getPricingPhaseList().get(0).getFormattedPrice());
-                        item.putString("currency", offerDetails.get().getPricingPhases().getPricingPhaseList().get(0).getPriceCurrencyCode());
+            @Override
+            public void onError(@NonNull BillingResult result) {
+                metrics.recordSince(BillingMetrics.Metric.QUERY_PURCHASES, queryStartedAt, true);
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, result.getResponseCode(), queryStartedAt);
+                metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH_CHANGES, calledAt, true);
+                promise.reject("flushChanges", result.getDebugMessage());
+            }
+        }), result -> {
+            metrics.recordSince(BillingMetrics.Metric.CALL_FLUSH_CHANGES, calledAt, true);
+            promise.reject("flushChanges", result.getDebugMessage());
+        });
+    }
 
-                        items.pushMap(item);
-                    }
-                }
+    @Override
+    public void purchase(String productId, @Nullable ReadableMap args) {
+        long calledAt = System.nanoTime();
 
-                for (ProductDetails productDetails : productDetailsList) {
-                    productDetailsMap.put(productDetails.getProductId(), productDetails);
-                }
+        tryConnect(() -> {
+            if (getCurrentActivity() == null) {
+                metrics.recordSince(BillingMetrics.Metric.CALL_PURCHASE, calledAt, true);
+                sendBillingError("PURCHASE", noActivityResult());
+                return;
+            }
 
-                if (fetchProductsListener != null) {
-                    fetchProductsListener.invoke(items);
+            withFlowRequest(productId, args, request -> {
+                // The product details may have been fetched first, long enough for the activity to go away.
+                Activity activity = getCurrentActivity();
+                if (activity == null) {
+                    metrics.recordSince(BillingMetrics.Metric.CALL_PURCHASE, calledAt, true);
+                    sendBillingError("PURCHASE", noActivityResult());
+                    return;
                 }
+
+                long launchStartedAt = System.nanoTime();
+                long traceId = trace.newCorrelationId();
+                lastLaunchTraceId = traceId;
+                BillingResult result = connectionManager.getBackend().launchBillingFlow(activity, request);
+                boolean isError = result.getResponseCode() != BillingClient.BillingResponseCode.OK;
+
+                metrics.recordSince(BillingMetrics.Metric.LAUNCH_BILLING_FLOW, launchStartedAt, isError);
+                trace.recordSince(BillingTrace.Operation.LAUNCH_BILLING_FLOW, traceId, result.getResponseCode(), launchStartedAt);
+                metrics.recordSince(BillingMetrics.Metric.CALL_PURCHASE, calledAt, isError);
+            }, result -> {
+                metrics.recordSince(BillingMetrics.Metric.CALL_PURCHASE, calledAt, true);
+                sendBillingError("PURCHASE", result);
             });
         });
     }
 
     @Override
-    public void flush(Promise promise) {
-        tryConnect(() -> client.queryPurchasesAsync(
-                QueryPurchasesParams.newBuilder().setProductType(BillingClient.ProductType.INAPP).build(),
-                (inAppResult, inAppPurchases) -> {
-                    if (inAppResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                        promise.reject("flush", inAppResult.getDebugMessage());
-                        return;
-                    }
-                    List<Purchase> purchaseList = new ArrayList<>(inAppPurchases);
+    public void preparePurchase(String productId, @Nullable ReadableMap args, Promise promise) {
+        tryConnect(() -> withFlowRequest(productId, args, request -> {
+            connectionManager.getBackend().prepareBillingFlow(request);
+            promise.resolve(null);
+        }, result -> promise.reject("preparePurchase", result.getDebugMessage())), result -> promise.reject("preparePurchase", result.getDebugMessage()));
+    }
 
-                    client.queryPurchasesAsync(
-                            QueryPurchasesParams.newBuilder().setProductType(BillingClient.ProductType.SUBS).build(),
-                            (subscriptionResult, subscriptionPurchases) -> {
-                                if (subscriptionResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                                    promise.reject("flush", subscriptionResult.getDebugMessage());
-                                    return;
-                                }
+    @Override
+    public void finalize(ReadableMap purchase, boolean isConsumable, final Promise promise) {
+        long calledAt = System.nanoTime();
+        String token = purchase.getString("purchaseToken");
 
-                                purchaseList.addAll(subscriptionPurchases);
-                                WritableArray items = new WritableNativeArray();
+        if (token == null) {
+            promise.reject("finalize", "purchaseToken is missing");
+            return;
+        }
 
-                                for (Purchase purchase : purchaseList) {
-                                    if (purchase.isAcknowledged()) {
-                                        continue;
-                                    }
+        // Retries go through the same pipeline as finalizeAll, so there is one retry layer.
+        FinalizePipeline.run(
+                Collections.singletonList(new FinalizePipeline.Request(token, isConsumable)),
+                this::submitFinalize,
+                1,
+                DEFAULT_FINALIZE_MAX_RETRIES,
+                results -> {
+                    FinalizePipeline.Result result = results.get(0);
+                    metrics.recordSince(BillingMetrics.Metric.CALL_FINALIZE, calledAt, !result.isSuccess());
+
+                    if (!result.isSuccess()) {
+                        promise.reject("finalize", result.debugMessage);
+                        return;
+                    }
 
-                                    ReadableMap item = this.buildPurchaseJSON(purchase);
-                                    items.pushMap(item);
-                                }
+                    WritableMap event = serializer.createMap();
+                    event.putString("message", result.debugMessage);
 
-                                promise.resolve(items);
-                            }
-                    );
+                    promise.resolve(event);
                 }
-        ));
+        );
     }
 
     @Override
-    public void purchase(String productId, @Nullable ReadableMap args) {
-        tryConnect(() -> {
-            if (getCurrentActivity() == null) {
-                return;
+    public void finalizeAll(ReadableArray purchases, @Nullable ReadableMap options, final Promise promise) {
+        List<FinalizePipeline.Request> requests = new ArrayList<>();
+
+        for (int i = 0; i < purchases.size(); i++) {
+            ReadableMap item = purchases.getMap(i);
+            ReadableMap purchase = item.getMap("purchase");
+            String token = purchase != null ? purchase.getString("purchaseToken") : null;
+
+            if (token == null) {
+                continue;
             }
 
-            ProductDetails productDetails = productDetailsMap.get(productId);
-            String obfuscatedAccountId = args != null ? args.getString("obfuscatedAccountId") : null;
-            String obfuscatedProfileId = args != null ? args.getString("obfuscatedProfileId") : null;
-            String originalPurchaseToken = args != null ? args.getString("originalPurchaseToken") : null;
+            requests.add(new FinalizePipeline.Request(token, item.hasKey("isConsumable") && item.getBoolean("isConsumable")));
+        }
 
-            String planId = args != null ? args.getString("planId") : null;
-            String offerId = args != null ? args.getString("offerId") : null;
+        FinalizePipeline.run(
+                requests,
+                this::submitFinalize,
+                ReadableMapUtils.getInt(options, "concurrency", DEFAULT_FINALIZE_CONCURRENCY),
+                ReadableMapUtils.getInt(options, "maxRetries", DEFAULT_FINALIZE_MAX_RETRIES),
+                results -> workerExecutor.execute(() -> {
+                    WritableArray items = serializer.createArray();
+
+                    for (FinalizePipeline.Result result : results) {
+                        WritableMap item = serializer.createMap();
+                        item.putString("purchaseToken", result.purchaseToken);
+                        item.putBoolean("isSuccess", result.isSuccess());
+                        item.putInt("code", result.responseCode);
+                        item.putString("message", result.debugMessage);
+                        item.putInt("attempts", result.attempts);
 
-            if (productDetails == null) {
-                return;
-            }
+                        items.pushMap(item);
+                    }
 
-            BillingFlowParams.Builder builder = BillingFlowParams.newBuilder();
+                    promise.resolve(items);
+                })
+        );
+    }
 
-            if (obfuscatedAccountId != null) {
-                builder.setObfuscatedAccountId(obfuscatedAccountId);
-            }
+    @Override
+    public void fetchReceipt(Promise promise) {
+        if (!purchaseVerifier.isAvailable()) {
+            promise.reject("fetchReceipt", "No valid publicKey is configured");
+            return;
+        }
 
-            if (obfuscatedProfileId != null) {
-                builder.setObfuscatedProfileId(obfuscatedProfileId);
-            }
+        tryConnect(() -> PurchasesQuery.run(connectionManager.getBackend(), PurchasesQuery.ALL_TYPES, new PurchasesQuery.Listener() {
+            final long queryStartedAt = System.nanoTime();
+            final long traceId = trace.newCorrelationId();
 
-            if (originalPurchaseToken != null) {
-                builder.setSubscriptionUpdateParams(
-                        BillingFlowParams.SubscriptionUpdateParams.newBuilder()
-                                .setOldPurchaseToken(originalPurchaseToken)
-                                .build()
-                );
+            @Override
+            public void onTypeFinished(@NonNull String productType, @NonNull List<Purchase> purchases) {
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, BillingClient.BillingResponseCode.OK, queryStartedAt);
             }
 
-            BillingFlowParams.ProductDetailsParams.Builder productDetailsParamsBuilder = BillingFlowParams.ProductDetailsParams.newBuilder();
-            List<ProductDetails.SubscriptionOfferDetails> offerDetailsList = productDetails.getSubscriptionOfferDetails();
+            @Override
+            public void onComplete(@NonNull List<Purchase> purchases) {
+                workerExecutor.execute(() -> {
+                    recordQueriedPurchases(purchases, queryStartedAt);
 
-            productDetailsParamsBuilder.setProductDetails(productDetails);
+                    Set<String> verifiedTokens = purchaseVerifier.verify(purchases);
+                    if (verifiedTokens.isEmpty()) {
+                        promise.resolve(null);
+                        return;
+                    }
 
-            if (offerDetailsList != null) {
-                offerDetailsList.stream()
-                        .filter(details -> planId == null || details.getBasePlanId().equals(planId))
-                        .filter(details -> offerId == null || (details.getOfferId() != null && details.getOfferId().equals(offerId)))
-                        .findFirst()
-                        .ifPresent(details -> productDetailsParamsBuilder.setOfferToken(details.getOfferToken()));
+                    // The purchase JSON is already valid JSON, so the array is assembled as is.
+                    StringBuilder receipt = new StringBuilder("[");
+                    for (Purchase purchase : purchases) {
+                        if (!verifiedTokens.contains(purchase.getPurchaseToken())) {
+                            continue;
+                        }
+                        if (receipt.length() > 1) {
+                            receipt.append(',');
+                        }
+                        receipt.append(purchase.getOriginalJson());
+                    }
+                    promise.resolve(receipt.append(']').toString());
+                });
             }
 
-            ImmutableList<BillingFlowParams.ProductDetailsParams> productDetailsParamsList = ImmutableList.of(productDetailsParamsBuilder.build());
-            BillingFlowParams params = builder.setProductDetailsParamsList(productDetailsParamsList).build();
+            @Override
+            public void onError(@NonNull BillingResult result) {
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, result.getResponseCode(), queryStartedAt);
+                promise.reject("fetchReceipt", result.getDebugMessage());
+            }
+        }), result -> promise.reject("fetchReceipt", result.getDebugMessage()));
+    }
 
-            client.launchBillingFlow(getCurrentActivity(), params);
-        });
+    @Override
+    public WritableArray getEntitlements() {
+        return serializer.entitlements(entitlementTable.getAll());
     }
 
     @Override
-    public void finalize(ReadableMap purchase, boolean isConsumable, final Promise promise) {
-        tryConnect(() -> {
-            String token = purchase.getString("purchaseToken");
+    public boolean hasEntitlement(String productId) {
+        return entitlementTable.has(productId);
+    }
 
-            if (token == null) {
-                return;
-            }
+    @Override
+    public void getConnectionStatus(Promise promise) {
+        BillingConnectionManager.Stats stats = connectionManager.getStats();
 
-            if (isConsumable) {
-                ConsumeParams params = ConsumeParams.newBuilder()
-                        .setPurchaseToken(token)
-                        .build();
+        WritableMap status = serializer.createMap();
+        status.putString("state", stats.state.name());
+        status.putInt("queueDepth", stats.queueDepth);
+        status.putInt("maxQueueDepth", stats.maxQueueDepth);
+        status.putDouble("lastConnectMillis", stats.lastConnectMillis);
+        status.putInt("reconnectAttempts", stats.reconnectAttempts);
 
-                client.consumeAsync(params, (result, purchaseToken) -> {
-                    if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                        promise.reject("finalize", result.getDebugMessage());
-                        return;
-                    }
+        BillingCircuitBreaker.Stats circuit = retryPolicy.getCircuitStats();
+        status.putString("circuitState", circuit.state.name());
+        status.putDouble("circuitRetryAfterMillis", circuit.retryAfterMillis);
 
-                    WritableMap event = Arguments.createMap();
-                    event.putString("message", result.getDebugMessage());
+        promise.resolve(status);
+    }
 
-                    promise.resolve(event);
-                });
-                return;
-            }
+    @Override
+    public void getMetrics(@Nullable ReadableMap options, Promise promise) {
+        boolean isReset = options != null && options.hasKey("reset") && options.getBoolean("reset");
+        BillingMetrics.Snapshot snapshot = metrics.snapshot(isReset);
+
+        WritableArray operations = serializer.createArray();
+        for (Map.Entry<BillingMetrics.Metric, LatencyHistogram.Snapshot> entry : snapshot.histograms.entrySet()) {
+            LatencyHistogram.Snapshot histogram = entry.getValue();
+
+            WritableMap item = serializer.createMap();
+            item.putString("name", entry.getKey().key);
+            item.putDouble("count", histogram.count);
+            item.putDouble("errorCount", histogram.errorCount);
+            item.putDouble("meanMillis", histogram.meanMillis);
+            item.putDouble("p50Millis", histogram.p50Millis);
+            item.putDouble("p90Millis", histogram.p90Millis);
+            item.putDouble("p99Millis", histogram.p99Millis);
+            item.putDouble("maxMillis", histogram.maxMillis);
+
+            operations.pushMap(item);
+        }
 
-            AcknowledgePurchaseParams acknowledgePurchaseParams = AcknowledgePurchaseParams.newBuilder()
-                    .setPurchaseToken(token)
-                    .build();
+        WritableMap result = serializer.createMap();
+        result.putDouble("windowMillis", snapshot.windowMillis);
+        result.putArray("operations", operations);
 
-            client.acknowledgePurchase(acknowledgePurchaseParams, (result) -> {
-                if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                    promise.reject("finalize", result.getDebugMessage());
-                    return;
-                }
+        promise.resolve(result);
+    }
 
-                WritableMap event = Arguments.createMap();
-                event.putString("message", result.getDebugMessage());
+    @Override
+    public void dumpTrace(Promise promise) {
+        promise.resolve(trace.dump());
+    }
 
-                promise.resolve(event);
-            });
-        });
+    @Override
+    public void addListener(String eventName) {
+        eventStream.addListener(eventName);
     }
 
     @Override
-    public void fetchReceipt(Promise promise) {
-        promise.reject("fetchReceipt", "Not implemented");
+    public void removeListeners(double count) {
+        eventStream.removeListeners((int) count);
     }
 
+    @Override
+    public void removeEventListener(String eventName) {
+        eventStream.removeListener(eventName);
+    }
+
+    // On Android, events are delivered through the event emitter. src/index.ts subscribes to them in place of these callbacks.
     @Override
     public void onFetchProducts(Callback listener) {
-        this.fetchProductsListener = listener;
     }
 
     @Override
     public void onPurchase(Callback listener) {
-        this.purchaseListener = listener;
     }
 
     @Override
     public void onAlternativeBillingFlow(Callback listener) {
-        this.alternativeBillingFlowListener = listener;
     }
 
     @Override
     public void onError(Callback listener) {
-        this.errorListener = listener;
     }
 
     @Override
     public void clear() {
-        this.fetchProductsListener = null;
-        this.purchaseListener = null;
-        this.errorListener = null;
-        this.alternativeBillingFlowListener = null;
     }
 
     @Override
     public void onPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
+        trace.record(BillingTrace.Operation.PURCHASES_UPDATED, lastLaunchTraceId, billingResult.getResponseCode(), 0);
+
         if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
             sendBillingError("PURCHASE", billingResult);
             return;
         }
 
-        if (purchases != null) {
+        if (purchases == null || purchases.isEmpty()) {
+            return;
+        }
+        entitlementTable.add(purchases);
+
+        workerExecutor.execute(() -> {
             for (Purchase purchase : purchases) {
-                ReadableMap item = this.buildPurchaseJSON(purchase);
-                this.purchaseListener.invoke(item);
+                purchaseJournal.recordArrived(purchase);
             }
-        }
+
+            long serializeStartedAt = System.nanoTime();
+            Object payload = purchasesPayload(purchases, false, null, isCompactPayload, isCompactReceiptIncluded);
+            metrics.recordSince(BillingMetrics.Metric.SERIALIZE_PURCHASES, serializeStartedAt, false);
+
+            eventStream.emit(BillingEventStream.PURCHASES, payload);
+        });
     }
 
     @Override
     public void userSelectedAlternativeBilling(@NonNull UserChoiceDetails userChoiceDetails) {
-        if (this.alternativeBillingFlowListener == null) {
-            return;
+        eventStream.emit(BillingEventStream.ALTERNATIVE_BILLING_FLOW, userChoiceDetails.getExternalTransactionToken());
+    }
+
+    private void onConfigSwapFinished(ReadableMap config, long fingerprint, BillingResult result) {
+        boolean isConnected = result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+        List<Promise> promises;
+
+        synchronized (configLock) {
+            if (pendingConfigPromises == null || pendingConfig != config) {
+                return;
+            }
+            promises = pendingConfigPromises;
+            pendingConfig = null;
+            pendingConfigPromises = null;
+
+            if (isConnected) {
+                applyConfig(config, fingerprint);
+            }
+        }
+
+        for (Promise promise : promises) {
+            if (isConnected) {
+                promise.resolve(true);
+            } else {
+                promise.reject("configure", "Billing service setup failed with code " + result.getResponseCode());
+            }
         }
 
-        this.alternativeBillingFlowListener.invoke(userChoiceDetails.getExternalTransactionToken());
+        if (isConnected) {
+            onConfigured();
+        }
     }
 
-    private boolean hasChangedOptions(ReadableMap appliedConfig, ReadableMap newConfig) {
-        return !ReadableMapUtils.deepEquals(appliedConfig, newConfig);
+    /**
+     * Records the result of a purchases query covering every product type.
+     */
+    private void recordQueriedPurchases(List<Purchase> purchases, long requestedAt) {
+        entitlementTable.replace(purchases, requestedAt);
+
+        for (Purchase purchase : purchases) {
+            // Play does not say whether an acknowledged purchase is a consumable, so it is only
+            // recorded as acknowledged; a later consume still goes to Play.
+            if (purchase.isAcknowledged()) {
+                purchaseJournal.recordFinalized(purchase.getPurchaseToken(), false);
+            } else {
+                purchaseJournal.recordArrived(purchase);
+            }
+        }
+        purchaseJournal.reconcile(purchases, requestedAt);
     }
 
+    private void onConfigured() {
+        prefetchProducts();
+        resumePendingFinalizations();
+        refreshEntitlements();
+    }
 
-    private void tryConnect(final Runnable runnable) {
-        if (client.isReady()) {
-            runnable.run();
+    /**
+     * Queries the products listed in {@code prefetchProducts} as soon as the client is connected,
+     * so fetchProducts can answer from the catalog or join the query still in flight. Each product
+     * type is queried on its own, so a failure of one does not discard the other.
+     */
+    private void prefetchProducts() {
+        List<ProductKey> keys = prefetchKeys;
+        if (keys.isEmpty()) {
             return;
         }
 
-        client.startConnection(new BillingClientStateListener() {
-            @Override
-            public void onBillingSetupFinished(@NonNull BillingResult result) {
-                if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                    runnable.run();
-                } else {
-                    sendBillingError("CONNECTION", result);
+        Map<String, List<ProductKey>> keysByType = new LinkedHashMap<>();
+        for (ProductKey key : keys) {
+            keysByType.computeIfAbsent(key.productType, productType -> new ArrayList<>()).add(key);
+        }
+
+        long requestedAt = System.nanoTime();
+        for (List<ProductKey> typeKeys : keysByType.values()) {
+            productQueryCoalescer.query(typeKeys, (billingResult, productDetailsList) -> {
+                // On failure, fetchProducts queries the products itself.
+                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                    return;
                 }
+
+                workerExecutor.execute(() -> publishProducts(ProductDetailsIndex.of(productDetailsList), productDetailsList, requestedAt));
+            });
+        }
+    }
+
+    private void refreshEntitlements() {
+        if (connectionManager.getBackend() == null) {
+            return;
+        }
+
+        connectionManager.execute(() -> PurchasesQuery.run(connectionManager.getBackend(), PurchasesQuery.ALL_TYPES, new PurchasesQuery.Listener() {
+            final long queryStartedAt = System.nanoTime();
+            final long traceId = trace.newCorrelationId();
+
+            @Override
+            public void onTypeFinished(@NonNull String productType, @NonNull List<Purchase> purchases) {
+                metrics.recordSince(BillingMetrics.Metric.QUERY_PURCHASES, queryStartedAt, false);
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, BillingClient.BillingResponseCode.OK, queryStartedAt);
             }
 
             @Override
-            public void onBillingServiceDisconnected() {
+            public void onComplete(@NonNull List<Purchase> purchases) {
+                workerExecutor.execute(() -> recordQueriedPurchases(purchases, queryStartedAt));
+            }
+
+            @Override
+            public void onError(@NonNull BillingResult result) {
+                metrics.recordSince(BillingMetrics.Metric.QUERY_PURCHASES, queryStartedAt, true);
+                trace.recordSince(BillingTrace.Operation.QUERY_PURCHASES, traceId, result.getResponseCode(), queryStartedAt);
+            }
+        }), result -> {
+            // Retried on the next refresh.
+        });
+    }
+
+    /**
+     * Finishes finalizations that were requested but never confirmed, e.g. because the app was
+     * killed while they were in flight. Tokens already finalized are skipped by finalizeToken.
+     */
+    private void resumePendingFinalizations() {
+        workerExecutor.execute(() -> {
+            List<FinalizePipeline.Request> requests = purchaseJournal.getPendingFinalizations();
+            if (requests.isEmpty()) {
+                return;
+            }
+
+            FinalizePipeline.run(
+                    requests,
+                    this::submitFinalize,
+                    DEFAULT_FINALIZE_CONCURRENCY,
+                    DEFAULT_FINALIZE_MAX_RETRIES,
+                    results -> {
+                        // Transient failures are resumed after the next configure; the others
+                        // would only fail again.
+                        for (FinalizePipeline.Result result : results) {
+                            if (!result.isSuccess() && !BillingResponseCodes.isTransient(result.responseCode)) {
+                                purchaseJournal.recordFinalizeAbandoned(result.purchaseToken);
+                            }
+                        }
+                    }
+            );
+        });
+    }
+
+    private void applyConfig(ReadableMap config, long fingerprint) {
+        this.appliedConfig = config;
+        this.appliedConfigFingerprint = fingerprint;
+
+        purchaseVerifier.setPublicKey(config != null && config.hasKey("publicKey") ? config.getString("publicKey") : null);
+        isCompactPayload = config != null && config.hasKey("compactPayloads") && config.getBoolean("compactPayloads");
+        isCompactReceiptIncluded = config != null && config.hasKey("includeReceipts") && config.getBoolean("includeReceipts");
+        prefetchKeys = config != null && config.hasKey("prefetchProducts") ? toProductKeys(config.getArray("prefetchProducts")) : Collections.emptyList();
+
+        entitlementTable.scheduleRefresh(
+                ReadableMapUtils.getInt(config, "entitlementRefreshInterval", DEFAULT_ENTITLEMENT_REFRESH_SECONDS) * 1000L,
+                this::refreshEntitlements
+        );
+        workerExecutor.setThreadCount(ReadableMapUtils.getInt(config, "workerThreads", DEFAULT_WORKER_THREADS));
+        catalogCache.configure(
+                ReadableMapUtils.getInt(config, "productCacheTtl", 0) * 1000L,
+                ReadableMapUtils.getInt(config, "productCacheSize", DEFAULT_PRODUCT_CACHE_SIZE)
+        );
+    }
+
+    private BillingBackend createBackend(ReadableMap config) {
+        boolean isAlternativeBillingEnable = config != null && config.hasKey("isAlternativeBillingEnable") && config.getBoolean("isAlternativeBillingEnable");
+
+        return retryPolicy.wrap(backendFactory.create(this, isAlternativeBillingEnable ? this : null));
+    }
+
+    private static boolean isSameConfig(long fingerprint1, ReadableMap config1, long fingerprint2, ReadableMap config2) {
+        if (fingerprint1 != fingerprint2) {
+            return false;
+        }
+        return ReadableMapUtils.deepEquals(config1, config2);
+    }
+
+
+    private void tryConnect(final Runnable runnable) {
+        tryConnect(runnable, null);
+    }
+
+    private void tryConnect(final Runnable runnable, @Nullable final Consumer<BillingResult> onFailure) {
+        connectionManager.execute(runnable, result -> {
+            trace.record(BillingTrace.Operation.CONNECTION_REJECTED, BillingTrace.NO_CORRELATION, result.getResponseCode(), 0);
+            sendBillingError("CONNECTION", result);
+
+            if (onFailure != null) {
+                onFailure.accept(result);
             }
         });
     }
 
+    private void submitFinalize(String token, boolean isConsumable, Consumer<BillingResult> done) {
+        connectionManager.execute(() -> finalizeToken(token, isConsumable, done), done);
+    }
+
+    private void finalizeToken(String token, boolean isConsumable, Consumer<BillingResult> onFinished) {
+        if (purchaseJournal.isFinalized(token, isConsumable)) {
+            onFinished.accept(BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.OK)
+                    .setDebugMessage("Purchase is already finalized")
+                    .build());
+            return;
+        }
+        purchaseJournal.recordFinalizeRequested(token, isConsumable);
+
+        Consumer<BillingResult> done = result -> {
+            if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                purchaseJournal.recordFinalized(token, isConsumable);
+                entitlementTable.onFinalized(token, isConsumable);
+            }
+            onFinished.accept(result);
+        };
+
+        long traceId = trace.newCorrelationId();
+
+        if (isConsumable) {
+            long startedAt = System.nanoTime();
+            connectionManager.getBackend().consume(token, (result, purchaseToken) -> {
+                metrics.recordSince(BillingMetrics.Metric.CONSUME, startedAt, result.getResponseCode() != BillingClient.BillingResponseCode.OK);
+                trace.recordSince(BillingTrace.Operation.CONSUME, traceId, result.getResponseCode(), startedAt);
+                done.accept(result);
+            });
+            return;
+        }
+
+        long startedAt = System.nanoTime();
+        connectionManager.getBackend().acknowledge(token, result -> {
+            metrics.recordSince(BillingMetrics.Metric.ACKNOWLEDGE, startedAt, result.getResponseCode() != BillingClient.BillingResponseCode.OK);
+            trace.recordSince(BillingTrace.Operation.ACKNOWLEDGE, traceId, result.getResponseCode(), startedAt);
+            done.accept(result);
+        });
+    }
+
+    private static BillingTrace.Operation deliveryOperation(String eventName) {
+        switch (eventName) {
+            case BillingEventStream.FETCH_PRODUCTS:
+                return BillingTrace.Operation.DELIVER_PRODUCTS;
+            case BillingEventStream.PURCHASES:
+                return BillingTrace.Operation.DELIVER_PURCHASES;
+            case BillingEventStream.ERROR:
+                return BillingTrace.Operation.DELIVER_ERROR;
+            default:
+                return BillingTrace.Operation.DELIVER_OTHER;
+        }
+    }
+
     private void sendBillingError(String type, BillingResult result) {
-        WritableMap exception = Arguments.createMap();
+        WritableMap exception = serializer.createMap();
         exception.putString("type", type);
         exception.putInt("code", result.getResponseCode());
         exception.putString("message", result.getDebugMessage());
 
-        if (errorListener != null) {
-            errorListener.invoke(exception);
+        eventStream.emit(BillingEventStream.ERROR, exception);
+    }
+
+    /**
+     * Serializes purchases as a list of maps, or as one {@link CompactPayload} string that leaves
+     * out receipts unless they are asked for.
+     */
+    private Object purchasesPayload(List<Purchase> purchases, boolean isUnacknowledgedOnly, @Nullable Set<String> verifiedTokens, boolean isCompact, boolean isReceiptIncluded) {
+        if (!isCompact) {
+            return serializer.purchases(purchases, isUnacknowledgedOnly, verifiedTokens);
+        }
+
+        WritableArray items = compactSerializer.purchases(purchases, isUnacknowledgedOnly, verifiedTokens);
+        return CompactPayload.encode(items, isReceiptIncluded ? Collections.emptySet() : RECEIPT_KEYS);
+    }
+
+    /**
+     * Hands the billing flow request for {@code productId} and {@code args} to {@code onReady},
+     * reusing the one built by an earlier call while the product details have not changed. Product
+     * details that were never fetched are queried first, as either product type.
+     */
+    private void withFlowRequest(String productId, @Nullable ReadableMap args, Consumer<BillingFlowRequest> onReady, Consumer<BillingResult> onFailure) {
+        String planId = args != null ? args.getString("planId") : null;
+        String offerId = args != null ? args.getString("offerId") : null;
+        String obfuscatedAccountId = args != null ? args.getString("obfuscatedAccountId") : null;
+        String obfuscatedProfileId = args != null ? args.getString("obfuscatedProfileId") : null;
+        String originalPurchaseToken = args != null ? args.getString("originalPurchaseToken") : null;
+
+        List<String> key = Arrays.asList(productId, planId, offerId, obfuscatedAccountId, obfuscatedProfileId, originalPurchaseToken);
+
+        IndexedProduct indexedProduct = productCatalog.get(productId);
+        if (indexedProduct != null) {
+            BillingFlowRequest request;
+            synchronized (preparedPurchases) {
+                request = preparedPurchases.get(key);
+                if (request == null || request.productDetails != indexedProduct.details) {
+                    request = new BillingFlowRequest(
+                            indexedProduct.details,
+                            indexedProduct.findOfferToken(planId, offerId),
+                            obfuscatedAccountId,
+                            obfuscatedProfileId,
+                            originalPurchaseToken
+                    );
+                    preparedPurchases.put(key, request);
+                }
+            }
+
+            onReady.accept(request);
+            return;
         }
+
+        // Play rejects queries that mix product types, so each type is queried on its own and
+        // the first one that finds the product goes ahead.
+        List<String> productTypes = Arrays.asList(BillingClient.ProductType.INAPP, BillingClient.ProductType.SUBS);
+        AtomicInteger remaining = new AtomicInteger(productTypes.size());
+        AtomicBoolean isAnswered = new AtomicBoolean();
+        AtomicReference<BillingResult> failure = new AtomicReference<>();
+
+        long requestedAt = System.nanoTime();
+        for (String productType : productTypes) {
+            productQueryCoalescer.query(Collections.singletonList(new ProductKey(productId, productType)), (billingResult, productDetailsList) -> workerExecutor.execute(() -> {
+                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                    ProductCatalog.Snapshot snapshot = publishProducts(ProductDetailsIndex.of(productDetailsList), productDetailsList, requestedAt);
+                    if (snapshot.get(productId) != null && isAnswered.compareAndSet(false, true)) {
+                        withFlowRequest(productId, args, onReady, onFailure);
+                        return;
+                    }
+                } else {
+                    failure.compareAndSet(null, billingResult);
+                }
+
+                if (remaining.decrementAndGet() > 0 || !isAnswered.compareAndSet(false, true)) {
+                    return;
+                }
+
+                BillingResult result = failure.get();
+                onFailure.accept(result != null ? result : BillingResult.newBuilder()
+                        .setResponseCode(BillingClient.BillingResponseCode.ITEM_UNAVAILABLE)
+                        .setDebugMessage("Product not found: " + productId)
+                        .build());
+            }));
+        }
+    }
+
+    private static BillingResult noActivityResult() {
+        return BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+                .setDebugMessage("No current activity to launch the billing flow from")
+                .build();
+    }
+
+    private ProductCatalog.Snapshot publishProducts(ProductDetailsIndex index, List<ProductDetails> productDetailsList, long requestedAt) {
+        catalogCache.putAll(productDetailsList);
+        return productCatalog.publish(index, requestedAt);
     }
 
-    private ReadableMap buildPurchaseJSON(Purchase purchase) {
-        WritableMap item = Arguments.createMap();
-        WritableArray productIds = Arguments.createArray();
-        for (String sku : purchase.getProducts()) {
-            productIds.pushString(sku);
+    private static List<ProductKey> toProductKeys(ReadableArray products) {
+        List<ProductKey> keys = new ArrayList<>();
+
+        for (int i = 0; i < products.size(); i++) {
+            ReadableMap product = products.getMap(i);
+
+            String productId = product.getString("id");
+            String productType = product.getString("type");
+
+            if (productId == null || productType == null) {
+                continue;
+            }
+
+            if (!productType.equals(BillingClient.ProductType.SUBS) && !productType.equals(BillingClient.ProductType.INAPP)) {
+                continue;
+            }
+
+            keys.add(new ProductKey(productId, productType));
+        }
+
+        return keys;
+    }
+
+    private void onProductDetailsResponse(ReadableArray products, boolean isCompact, boolean isAlreadyAnswered, long calledAt, BillingResult billingResult, List<ProductDetails> productDetailsList) {
+        if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+            metrics.recordSince(BillingMetrics.Metric.CALL_FETCH_PRODUCTS, calledAt, true);
+
+            // A stale answer was already sent; it stays in use until a query succeeds.
+            if (!isAlreadyAnswered) {
+                sendBillingError("FETCH_PRODUCTS", billingResult);
+            }
+            return;
+        }
+
+        long serializeStartedAt = System.nanoTime();
+        ProductDetailsIndex index = ProductDetailsIndex.of(productDetailsList);
+        // The shape the caller was answered in so far, even if configure changed it since.
+        Object payload = isCompact
+                ? CompactPayload.encode(compactSerializer.products(products, index))
+                : serializer.products(products, index);
+        metrics.recordSince(BillingMetrics.Metric.SERIALIZE_PRODUCTS, serializeStartedAt, false);
+
+        publishProducts(index, productDetailsList, calledAt);
+
+        eventStream.emit(BillingEventStream.FETCH_PRODUCTS, payload);
+        metrics.recordSince(BillingMetrics.Metric.CALL_FETCH_PRODUCTS, calledAt, false);
+    }
+
+    @Nullable
+    private WritableArray buildCachedProductsJSON(ReadableArray products, BillingSerializer target) {
+        if (!catalogCache.isEnabled()) {
+            return null;
+        }
+
+        WritableArray items = target.createArray();
+
+        for (int i = 0; i < products.size(); i++) {
+            ReadableMap product = products.getMap(i);
+
+            String productId = product.getString("id");
+            String productType = product.getString("type");
+            String planId = product.getString("planId");
+            String offerId = product.getString("offerId");
+
+            if (productId == null || productType == null) {
+                continue;
+            }
+
+            if (!productType.equals(BillingClient.ProductType.SUBS) && !productType.equals(BillingClient.ProductType.INAPP)) {
+                continue;
+            }
+
+            CachedProduct cachedProduct = catalogCache.get(productId);
+            if (cachedProduct == null) {
+                return null;
+            }
+
+            WritableMap item = target.createMap();
+            item.putString("productId", cachedProduct.productId);
+            item.putString("title", cachedProduct.title);
+            item.putString("description", cachedProduct.description);
+            item.putBoolean("isCached", true);
+
+            if (productType.equals(BillingClient.ProductType.INAPP)) {
+                item.putString("offerId", offerId);
+
+                if (cachedProduct.oneTimeOffer != null) {
+                    item.putString("price", cachedProduct.oneTimeOffer.formattedPrice);
+                    item.putString("currency", cachedProduct.oneTimeOffer.currencyCode);
+                }
+
+                items.pushMap(item);
+                continue;
+            }
+
+            CachedProduct.Offer offer = cachedProduct.findOffer(planId, offerId);
+            if (offer == null || offer.pricingPhases.isEmpty()) {
+                continue;
+            }
+
+            item.putString("planId", planId);
+            item.putString("offerId", offerId);
+            item.putString("price", offer.pricingPhases.get(0).formattedPrice);
+            item.putString("currency", offer.pricingPhases.get(0).currencyCode);
+
+            items.pushMap(item);
         }
-        item.putArray("productIds", productIds);
-        item.putString("transactionId", purchase.getOrderId());
-        item.putString("transactionDate", String.valueOf(purchase.getPurchaseTime()));
-        item.putString("receipt", purchase.getOriginalJson());
-        item.putString("purchaseToken", purchase.getPurchaseToken());
 
-        return item;
+        return items.size() > 0 ? items : null;
     }
 }
 
@@ -0,0 +1,51 @@
+package net.class101.iap.internal.billing;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.UserChoiceBillingListener;
+
+import java.util.List;
+
+/**
+ * The subset of {@link com.android.billingclient.api.BillingClient} the module uses, in terms
+ * of plain values instead of Play's parameter builders so it can be implemented off-device.
+ * Callbacks follow the BillingClient contract: each listener is called exactly once.
+ */
+public interface BillingBackend {
+    interface Factory {
+        BillingBackend create(@NonNull PurchasesUpdatedListener purchasesUpdatedListener, @Nullable UserChoiceBillingListener userChoiceBillingListener);
+    }
+
+    boolean isReady();
+
+    void startConnection(@NonNull BillingClientStateListener listener);
+
+    void endConnection();
+
+    void queryProductDetails(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener);
+
+    void queryPurchases(@NonNull String productType, @NonNull PurchasesResponseListener listener);
+
+    /**
+     * Builds whatever {@link #launchBillingFlow} needs for {@code request} ahead of time, so
+     * launching the same request later does no extra work.
+     */
+    default void prepareBillingFlow(@NonNull BillingFlowRequest request) {
+    }
+
+    BillingResult launchBillingFlow(@Nullable Activity activity, @NonNull BillingFlowRequest request);
+
+    void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener);
+
+    void acknowledge(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener);
+}
@@ -0,0 +1,118 @@
+package net.class101.iap.internal.billing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Fails billing calls fast while Play keeps returning transient errors. After
+ * {@code FAILURE_THRESHOLD} transient results in a row the breaker opens and rejects calls for a
+ * cooldown that doubles with every consecutive trip. Once the cooldown is over, a single probe
+ * call is let through: any other response closes the breaker, another transient one opens it
+ * again. A probe that has not answered within {@code PROBE_TIMEOUT_MILLIS}, e.g. because its
+ * client was closed mid-call, counts as lost and the breaker opens again.
+ */
+public class BillingCircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long BASE_OPEN_MILLIS = 10_000;
+    private static final long MAX_OPEN_MILLIS = 300_000;
+    private static final long PROBE_TIMEOUT_MILLIS = 30_000;
+
+    private final LongSupplier nanoClock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private int consecutiveTrips;
+    private long openedAt;
+    private long openNanos;
+    private long probeStartedAt;
+
+    public BillingCircuitBreaker() {
+        this(System::nanoTime);
+    }
+
+    BillingCircuitBreaker(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Whether a call may go to Play now. In the half-open state only the probe is allowed.
+     */
+    public synchronized boolean tryAcquire() {
+        long now = nanoClock.getAsLong();
+        expireProbe(now);
+
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeStartedAt = now;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void onResult(int responseCode) {
+        if (!BillingResponseCodes.isTransient(responseCode)) {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            consecutiveTrips = 0;
+            return;
+        }
+
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            state = State.OPEN;
+            openedAt = nanoClock.getAsLong();
+            openNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(MAX_OPEN_MILLIS, BASE_OPEN_MILLIS << Math.min(consecutiveTrips, 5)));
+            consecutiveTrips++;
+        }
+    }
+
+    /**
+     * For results that say nothing about Play's health, e.g. a dropped connection. A probe that
+     * ends this way does not decide anything; the breaker waits another cooldown before the next.
+     */
+    public synchronized void onInconclusive() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedAt = nanoClock.getAsLong();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        expireProbe(nanoClock.getAsLong());
+
+        long retryAfterNanos = state == State.OPEN ? Math.max(0, openNanos - (nanoClock.getAsLong() - openedAt)) : 0;
+        return new Stats(state, consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+    }
+
+    private void expireProbe(long now) {
+        if (state == State.HALF_OPEN && now - probeStartedAt >= TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS)) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    public static final class Stats {
+        public final State state;
+        public final int consecutiveFailures;
+        public final long retryAfterMillis;
+
+        Stats(State state, int consecutiveFailures, long retryAfterMillis) {
+            this.state = state;
+            this.consecutiveFailures = consecutiveFailures;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+}
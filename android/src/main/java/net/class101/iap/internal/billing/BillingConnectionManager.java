@@ -0,0 +1,406 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Owns the connection of a {@link BillingBackend}. At most one connection attempt is in flight;
+ * operations that arrive while the client is not ready wait in a bounded queue and run in order
+ * once setup finishes. Unexpected disconnects are retried with jittered exponential backoff.
+ * <p>
+ * A configured backend is replaced with {@link #swap}: the replacement connects on the side
+ * while traffic keeps using the current one, and only takes over once its setup succeeded.
+ * The replaced backend is closed after its in-flight calls have returned.
+ */
+public class BillingConnectionManager {
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED,
+        CLOSED
+    }
+
+    public interface Observer {
+        void onSetupFinished(long elapsedNanos, int responseCode);
+
+        void onQueueWait(long waitNanos);
+    }
+
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 16_000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+    private static final long MAX_DRAIN_MILLIS = 30_000;
+
+    private final int maxQueueSize;
+    private final ScheduledExecutorService scheduler;
+    private final ArrayDeque<Operation> queue = new ArrayDeque<>();
+
+    private DrainableBillingBackend backend;
+    private DrainableBillingBackend standby;
+    private State state = State.CLOSED;
+    private long connectStartedAt;
+    private long lastConnectMillis = -1;
+    private int reconnectAttempts;
+    private int maxObservedQueueDepth;
+    private ScheduledFuture<?> pendingReconnect;
+    @Nullable
+    private Observer observer;
+
+    public BillingConnectionManager(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rniap-billing-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void setObserver(@Nullable Observer observer) {
+        this.observer = observer;
+    }
+
+    public synchronized void attach(@NonNull BillingBackend backend) {
+        cancelPendingReconnect();
+        this.backend = new DrainableBillingBackend(backend);
+        this.state = State.DISCONNECTED;
+        this.reconnectAttempts = 0;
+    }
+
+    /**
+     * Connects {@code replacement} while the current backend keeps serving, then switches over
+     * atomically. If setup fails, or the replacement disconnects before setup finished, the
+     * current backend stays in place and {@code onFinished} gets the failure. A later call
+     * supersedes a replacement that has not connected yet; its {@code onFinished} is then never
+     * called.
+     */
+    public void swap(@NonNull BillingBackend replacement, @NonNull Consumer<BillingResult> onFinished) {
+        DrainableBillingBackend target = new DrainableBillingBackend(replacement);
+        DrainableBillingBackend superseded;
+        long startedAt = System.nanoTime();
+
+        synchronized (this) {
+            superseded = standby;
+            standby = target;
+        }
+
+        if (superseded != null) {
+            superseded.endConnection();
+        }
+
+        target.startConnection(new BillingClientStateListener() {
+            @Override
+            public void onBillingSetupFinished(@NonNull BillingResult result) {
+                onStandbySetupFinished(target, startedAt, result, onFinished);
+            }
+
+            @Override
+            public void onBillingServiceDisconnected() {
+                onStandbyDisconnected(target, onFinished);
+            }
+        });
+    }
+
+    public void close() {
+        DrainableBillingBackend closed;
+        DrainableBillingBackend superseded;
+
+        synchronized (this) {
+            cancelPendingReconnect();
+            closed = backend;
+            superseded = standby;
+            backend = null;
+            standby = null;
+            state = State.CLOSED;
+        }
+
+        if (closed != null) {
+            closed.endConnection();
+        }
+        if (superseded != null) {
+            superseded.endConnection();
+        }
+    }
+
+    @Nullable
+    public synchronized BillingBackend getBackend() {
+        return backend;
+    }
+
+    public void execute(@NonNull Runnable runnable, @NonNull Consumer<BillingResult> onFailure) {
+        BillingResult failure = null;
+        DrainableBillingBackend connectTarget = null;
+        Observer observer;
+
+        synchronized (this) {
+            observer = this.observer;
+
+            if (backend == null) {
+                failure = BillingResult.newBuilder()
+                        .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+                        .setDebugMessage("Billing client is not configured")
+                        .build();
+            } else if (state == State.CONNECTED && backend.isReady() && queue.isEmpty()) {
+                // Fall through and run outside of the lock.
+            } else if (queue.size() >= maxQueueSize) {
+                failure = BillingResult.newBuilder()
+                        .setResponseCode(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE)
+                        .setDebugMessage("Too many billing operations are waiting for the connection")
+                        .build();
+            } else {
+                queue.add(new Operation(runnable, onFailure, System.nanoTime()));
+                runnable = null;
+                maxObservedQueueDepth = Math.max(maxObservedQueueDepth, queue.size());
+
+                if (state == State.CONNECTED) {
+                    state = State.DISCONNECTED;
+                }
+                if (state == State.DISCONNECTED && pendingReconnect == null) {
+                    connectTarget = beginConnect();
+                }
+            }
+        }
+
+        if (connectTarget != null) {
+            startConnection(connectTarget);
+            return;
+        }
+
+        if (failure != null) {
+            onFailure.accept(failure);
+            return;
+        }
+
+        if (runnable != null) {
+            if (observer != null) {
+                observer.onQueueWait(0);
+            }
+            runnable.run();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(state, queue.size(), maxObservedQueueDepth, lastConnectMillis, reconnectAttempts);
+    }
+
+    private DrainableBillingBackend beginConnect() {
+        state = State.CONNECTING;
+        connectStartedAt = System.nanoTime();
+        return backend;
+    }
+
+    private void startConnection(final DrainableBillingBackend target) {
+        target.startConnection(new BillingClientStateListener() {
+            @Override
+            public void onBillingSetupFinished(@NonNull BillingResult result) {
+                onSetupFinished(target, result);
+            }
+
+            @Override
+            public void onBillingServiceDisconnected() {
+                onDisconnected(target);
+            }
+        });
+    }
+
+    private void onSetupFinished(DrainableBillingBackend target, BillingResult result) {
+        List<Operation> operations;
+        Observer observer;
+        boolean isConnected = result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+
+        synchronized (this) {
+            if (target != backend || state != State.CONNECTING) {
+                return;
+            }
+
+            observer = this.observer;
+            if (observer != null) {
+                observer.onSetupFinished(System.nanoTime() - connectStartedAt, result.getResponseCode());
+            }
+
+            if (isConnected) {
+                state = State.CONNECTED;
+                lastConnectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartedAt);
+                reconnectAttempts = 0;
+            } else {
+                state = State.DISCONNECTED;
+
+                if (reconnectAttempts > 0 && BillingResponseCodes.isTransient(result.getResponseCode())) {
+                    scheduleReconnect();
+                }
+            }
+
+            operations = new ArrayList<>(queue);
+            queue.clear();
+        }
+
+        for (Operation operation : operations) {
+            if (isConnected) {
+                runQueued(operation, observer);
+            } else {
+                operation.onFailure.accept(result);
+            }
+        }
+    }
+
+    private void onStandbySetupFinished(DrainableBillingBackend target, long startedAt, BillingResult result, Consumer<BillingResult> onFinished) {
+        List<Operation> operations;
+        DrainableBillingBackend retired;
+        Observer observer;
+        boolean isConnected = result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+
+        synchronized (this) {
+            if (target != standby) {
+                return;
+            }
+            standby = null;
+
+            observer = this.observer;
+            if (observer != null) {
+                observer.onSetupFinished(System.nanoTime() - startedAt, result.getResponseCode());
+            }
+
+            if (!isConnected) {
+                operations = null;
+                retired = null;
+            } else {
+                cancelPendingReconnect();
+                retired = backend;
+                backend = target;
+                state = State.CONNECTED;
+                lastConnectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                reconnectAttempts = 0;
+
+                operations = new ArrayList<>(queue);
+                queue.clear();
+            }
+        }
+
+        if (!isConnected) {
+            target.endConnection();
+            onFinished.accept(result);
+            return;
+        }
+
+        if (retired != null) {
+            retired.retire();
+            scheduler.schedule(retired::endConnection, MAX_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        for (Operation operation : operations) {
+            runQueued(operation, observer);
+        }
+        onFinished.accept(result);
+    }
+
+    private void onStandbyDisconnected(DrainableBillingBackend target, Consumer<BillingResult> onFinished) {
+        synchronized (this) {
+            // Already took over, or was superseded.
+            if (target != standby) {
+                onDisconnected(target);
+                return;
+            }
+            standby = null;
+        }
+
+        target.endConnection();
+        onFinished.accept(BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+                .setDebugMessage("Billing service disconnected before setup finished")
+                .build());
+    }
+
+    private static void runQueued(Operation operation, @Nullable Observer observer) {
+        if (observer != null) {
+            observer.onQueueWait(System.nanoTime() - operation.enqueuedAt);
+        }
+        operation.runnable.run();
+    }
+
+    private synchronized void onDisconnected(DrainableBillingBackend target) {
+        if (target != backend || state == State.CLOSED) {
+            return;
+        }
+
+        state = State.DISCONNECTED;
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (pendingReconnect != null) {
+            return;
+        }
+
+        if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+            reconnectAttempts = 0;
+            return;
+        }
+
+        long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << reconnectAttempts);
+        long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        reconnectAttempts++;
+
+        pendingReconnect = scheduler.schedule(() -> {
+            DrainableBillingBackend target = null;
+
+            synchronized (BillingConnectionManager.this) {
+                pendingReconnect = null;
+                if (backend != null && state == State.DISCONNECTED) {
+                    target = beginConnect();
+                }
+            }
+
+            if (target != null) {
+                startConnection(target);
+            }
+        }, jittered, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPendingReconnect() {
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel(false);
+            pendingReconnect = null;
+        }
+    }
+
+    private static final class Operation {
+        final Runnable runnable;
+        final Consumer<BillingResult> onFailure;
+        final long enqueuedAt;
+
+        Operation(Runnable runnable, Consumer<BillingResult> onFailure, long enqueuedAt) {
+            this.runnable = runnable;
+            this.onFailure = onFailure;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    public static final class Stats {
+        public final State state;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final long lastConnectMillis;
+        public final int reconnectAttempts;
+
+        Stats(State state, int queueDepth, int maxQueueDepth, long lastConnectMillis, int reconnectAttempts) {
+            this.state = state;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.lastConnectMillis = lastConnectMillis;
+            this.reconnectAttempts = reconnectAttempts;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+public final class BillingFlowRequest {
+    public final ProductDetails productDetails;
+    @Nullable
+    public final String offerToken;
+    @Nullable
+    public final String obfuscatedAccountId;
+    @Nullable
+    public final String obfuscatedProfileId;
+    @Nullable
+    public final String oldPurchaseToken;
+
+    public BillingFlowRequest(
+            @NonNull ProductDetails productDetails,
+            @Nullable String offerToken,
+            @Nullable String obfuscatedAccountId,
+            @Nullable String obfuscatedProfileId,
+            @Nullable String oldPurchaseToken
+    ) {
+        this.productDetails = productDetails;
+        this.offerToken = offerToken;
+        this.obfuscatedAccountId = obfuscatedAccountId;
+        this.obfuscatedProfileId = obfuscatedProfileId;
+        this.oldPurchaseToken = oldPurchaseToken;
+    }
+}
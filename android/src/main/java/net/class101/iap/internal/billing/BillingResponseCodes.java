@@ -0,0 +1,18 @@
+package net.class101.iap.internal.billing;
+
+import com.android.billingclient.api.BillingClient;
+
+public class BillingResponseCodes {
+    public static boolean isTransient(int responseCode) {
+        switch (responseCode) {
+            case BillingClient.BillingResponseCode.SERVICE_DISCONNECTED:
+            case BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE:
+            case BillingClient.BillingResponseCode.SERVICE_TIMEOUT:
+            case BillingClient.BillingResponseCode.NETWORK_ERROR:
+            case BillingClient.BillingResponseCode.ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Retries billing calls that end with a transient response code, with jittered exponential
+ * backoff, and guards them with a shared {@link BillingCircuitBreaker}.
+ * <p>
+ * Consumes and acknowledges are not retried here: {@link FinalizePipeline} retries them, and
+ * retrying in both places would multiply the attempts per token. They are still guarded by the
+ * breaker.
+ * <p>
+ * Each operation has a retry limit per call and a retry budget: every call adds a fraction of a
+ * token and every retry takes a whole one, so retries stay a small share of the traffic even
+ * when callers retry on their own. The policy outlives backend swaps, so the budgets and the
+ * breaker keep their state across configurations.
+ * <p>
+ * A call that ends with {@code SERVICE_DISCONNECTED} is retried through the {@link Connector},
+ * which reconnects first. A dropped connection says nothing about Play's health, so it does not
+ * count toward the breaker.
+ */
+public class BillingRetryPolicy {
+    public enum Operation {
+        QUERY_PRODUCT_DETAILS(2),
+        QUERY_PURCHASES(2),
+        CONSUME(0),
+        ACKNOWLEDGE(0);
+
+        final int maxRetries;
+
+        Operation(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+    }
+
+    public interface Observer {
+        void onRetry(@NonNull Operation operation, int responseCode, long delayMillis);
+    }
+
+    /**
+     * Runs {@code runnable} once the client is connected, like {@link BillingConnectionManager#execute}.
+     */
+    public interface Connector {
+        void execute(@NonNull Runnable runnable, @NonNull Consumer<BillingResult> onFailure);
+    }
+
+    interface Attempt<T> {
+        void run(@NonNull BiConsumer<BillingResult, T> done);
+    }
+
+    static final String CIRCUIT_OPEN_MESSAGE = "Billing service is failing; calls are paused";
+    private static final long BASE_RETRY_DELAY_MILLIS = 250;
+    private static final long MAX_RETRY_DELAY_MILLIS = 4_000;
+    private static final double MAX_BUDGET_TOKENS = 10;
+    private static final double BUDGET_TOKENS_PER_CALL = 0.2;
+
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rniap-billing-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BillingCircuitBreaker circuitBreaker = new BillingCircuitBreaker();
+    private final Map<Operation, RetryBudget> budgets = new EnumMap<>(Operation.class);
+    @Nullable
+    private volatile Observer observer;
+    @Nullable
+    private volatile Connector connector;
+
+    public BillingRetryPolicy() {
+        for (Operation operation : Operation.values()) {
+            budgets.put(operation, new RetryBudget());
+        }
+    }
+
+    public void setObserver(@Nullable Observer observer) {
+        this.observer = observer;
+    }
+
+    public void setConnector(@Nullable Connector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Whether {@code result} is a call rejected by the open breaker. Retrying it right away only
+     * gets rejected again.
+     */
+    public static boolean isCircuitRejection(@NonNull BillingResult result) {
+        return result.getResponseCode() == BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE
+                && CIRCUIT_OPEN_MESSAGE.equals(result.getDebugMessage());
+    }
+
+    public BillingCircuitBreaker.Stats getCircuitStats() {
+        return circuitBreaker.getStats();
+    }
+
+    /**
+     * Wraps {@code backend} so its queries, consumes and acknowledges follow this policy.
+     * Launching a billing flow is left alone, since the user is waiting on it.
+     */
+    public BillingBackend wrap(@NonNull BillingBackend backend) {
+        return new RetryingBillingBackend(backend, this);
+    }
+
+    <T> void execute(@NonNull Operation operation, @NonNull Attempt<T> attempt, @Nullable T rejectedValue, @NonNull BiConsumer<BillingResult, T> onFinished) {
+        budgets.get(operation).deposit();
+
+        if (!circuitBreaker.tryAcquire()) {
+            onFinished.accept(BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE)
+                    .setDebugMessage(CIRCUIT_OPEN_MESSAGE)
+                    .build(), rejectedValue);
+            return;
+        }
+
+        run(operation, attempt, 0, onFinished);
+    }
+
+    private <T> void run(Operation operation, Attempt<T> attempt, int retries, BiConsumer<BillingResult, T> onFinished) {
+        attempt.run((result, value) -> {
+            int code = result.getResponseCode();
+            boolean isDisconnected = code == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
+            Connector connector = this.connector;
+
+            if (isDisconnected) {
+                circuitBreaker.onInconclusive();
+            } else {
+                circuitBreaker.onResult(code);
+            }
+
+            if (code == BillingClient.BillingResponseCode.OK
+                    || !BillingResponseCodes.isTransient(code)
+                    || (isDisconnected && connector == null)
+                    || retries >= operation.maxRetries
+                    || !budgets.get(operation).withdraw()
+                    || !circuitBreaker.tryAcquire()) {
+                onFinished.accept(result, value);
+                return;
+            }
+
+            Observer observer = this.observer;
+
+            // Retrying on the same client would fail again; the connection manager reconnects it
+            // first and backs off on its own.
+            if (isDisconnected) {
+                if (observer != null) {
+                    observer.onRetry(operation, code, 0);
+                }
+                connector.execute(() -> run(operation, attempt, retries + 1, onFinished), failure -> onFinished.accept(failure, value));
+                return;
+            }
+
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS, BASE_RETRY_DELAY_MILLIS << retries);
+            long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+            if (observer != null) {
+                observer.onRetry(operation, code, jittered);
+            }
+            retryScheduler.schedule(() -> run(operation, attempt, retries + 1, onFinished), jittered, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private static final class RetryBudget {
+        private double tokens = MAX_BUDGET_TOKENS;
+
+        synchronized void deposit() {
+            tokens = Math.min(MAX_BUDGET_TOKENS, tokens + BUDGET_TOKENS_PER_CALL);
+        }
+
+        synchronized boolean withdraw() {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
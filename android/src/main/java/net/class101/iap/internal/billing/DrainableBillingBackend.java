@@ -0,0 +1,124 @@
+package net.class101.iap.internal.billing;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+
+import java.util.List;
+
+/**
+ * Counts the asynchronous calls a backend still owes a callback for, so a backend that has been
+ * swapped out can be closed once they have all returned instead of cutting them off.
+ */
+final class DrainableBillingBackend implements BillingBackend {
+    private final BillingBackend delegate;
+
+    private int inFlight;
+    private boolean isRetired;
+    private boolean isClosed;
+
+    DrainableBillingBackend(@NonNull BillingBackend delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Closes the connection as soon as no call is in flight.
+     */
+    void retire() {
+        synchronized (this) {
+            isRetired = true;
+            if (inFlight > 0) {
+                return;
+            }
+        }
+        endConnection();
+    }
+
+    @Override
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    @Override
+    public void startConnection(@NonNull BillingClientStateListener listener) {
+        delegate.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        delegate.endConnection();
+    }
+
+    @Override
+    public void queryProductDetails(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener) {
+        begin();
+        delegate.queryProductDetails(products, (result, productDetailsList) -> {
+            listener.onProductDetailsResponse(result, productDetailsList);
+            end();
+        });
+    }
+
+    @Override
+    public void queryPurchases(@NonNull String productType, @NonNull PurchasesResponseListener listener) {
+        begin();
+        delegate.queryPurchases(productType, (result, purchases) -> {
+            listener.onQueryPurchasesResponse(result, purchases);
+            end();
+        });
+    }
+
+    @Override
+    public void prepareBillingFlow(@NonNull BillingFlowRequest request) {
+        delegate.prepareBillingFlow(request);
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(@Nullable Activity activity, @NonNull BillingFlowRequest request) {
+        return delegate.launchBillingFlow(activity, request);
+    }
+
+    @Override
+    public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+        begin();
+        delegate.consume(purchaseToken, (result, token) -> {
+            listener.onConsumeResponse(result, token);
+            end();
+        });
+    }
+
+    @Override
+    public void acknowledge(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+        begin();
+        delegate.acknowledge(purchaseToken, result -> {
+            listener.onAcknowledgePurchaseResponse(result);
+            end();
+        });
+    }
+
+    private synchronized void begin() {
+        inFlight++;
+    }
+
+    private void end() {
+        synchronized (this) {
+            if (--inFlight > 0 || !isRetired) {
+                return;
+            }
+        }
+        endConnection();
+    }
+}
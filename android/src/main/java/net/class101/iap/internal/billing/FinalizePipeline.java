@@ -0,0 +1,175 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Consumes or acknowledges a batch of purchase tokens with at most {@code concurrency} billing
+ * calls in flight. Transient response codes are retried with jittered backoff, except calls
+ * rejected by the open circuit breaker, and the listener is called once with a result for every
+ * distinct token.
+ */
+public class FinalizePipeline {
+    public interface Finalizer {
+        void submit(@NonNull String purchaseToken, boolean isConsumable, @NonNull Consumer<BillingResult> done);
+    }
+
+    public interface Listener {
+        void onComplete(@NonNull List<Result> results);
+    }
+
+    private static final long BASE_RETRY_DELAY_MILLIS = 250;
+    private static final long MAX_RETRY_DELAY_MILLIS = 4_000;
+    // maxRetries comes from JS; more than this only keeps a token in flight for minutes.
+    private static final int MAX_RETRIES = 10;
+
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rniap-finalize-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Finalizer finalizer;
+    private final int concurrency;
+    private final int maxRetries;
+    private final Listener listener;
+
+    private final ArrayDeque<Task> pending = new ArrayDeque<>();
+    private final Map<String, Result> results = new LinkedHashMap<>();
+    private int inFlight;
+    private int remaining;
+
+    private FinalizePipeline(Finalizer finalizer, int concurrency, int maxRetries, Listener listener) {
+        this.finalizer = finalizer;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxRetries = Math.max(0, Math.min(MAX_RETRIES, maxRetries));
+        this.listener = listener;
+    }
+
+    public static void run(@NonNull List<Request> requests, @NonNull Finalizer finalizer, int concurrency, int maxRetries, @NonNull Listener listener) {
+        FinalizePipeline pipeline = new FinalizePipeline(finalizer, concurrency, maxRetries, listener);
+        pipeline.start(requests);
+    }
+
+    private void start(List<Request> requests) {
+        synchronized (this) {
+            for (Request request : requests) {
+                if (results.containsKey(request.purchaseToken)) {
+                    continue;
+                }
+                results.put(request.purchaseToken, null);
+                pending.add(new Task(request));
+            }
+            remaining = pending.size();
+        }
+
+        if (remaining == 0) {
+            listener.onComplete(new ArrayList<>());
+            return;
+        }
+
+        dispatch();
+    }
+
+    private void dispatch() {
+        List<Task> ready = new ArrayList<>();
+
+        synchronized (this) {
+            while (inFlight < concurrency && !pending.isEmpty()) {
+                inFlight++;
+                ready.add(pending.poll());
+            }
+        }
+
+        for (Task task : ready) {
+            execute(task);
+        }
+    }
+
+    private void execute(Task task) {
+        task.attempts++;
+        finalizer.submit(task.request.purchaseToken, task.request.isConsumable, result -> onFinished(task, result));
+    }
+
+    private void onFinished(Task task, BillingResult result) {
+        int code = result.getResponseCode();
+
+        if (code != BillingClient.BillingResponseCode.OK
+                && BillingResponseCodes.isTransient(code)
+                && !BillingRetryPolicy.isCircuitRejection(result)
+                && task.attempts <= maxRetries) {
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS, BASE_RETRY_DELAY_MILLIS << (task.attempts - 1));
+            long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            retryScheduler.schedule(() -> execute(task), jittered, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        List<Result> completed = null;
+
+        synchronized (this) {
+            inFlight--;
+            results.put(task.request.purchaseToken, new Result(task.request.purchaseToken, code, result.getDebugMessage(), task.attempts));
+
+            if (--remaining == 0) {
+                completed = new ArrayList<>(results.values());
+            }
+        }
+
+        if (completed != null) {
+            listener.onComplete(completed);
+            return;
+        }
+
+        dispatch();
+    }
+
+    public static final class Request {
+        public final String purchaseToken;
+        public final boolean isConsumable;
+
+        public Request(@NonNull String purchaseToken, boolean isConsumable) {
+            this.purchaseToken = purchaseToken;
+            this.isConsumable = isConsumable;
+        }
+    }
+
+    public static final class Result {
+        public final String purchaseToken;
+        public final int responseCode;
+        public final String debugMessage;
+        public final int attempts;
+
+        Result(String purchaseToken, int responseCode, String debugMessage, int attempts) {
+            this.purchaseToken = purchaseToken;
+            this.responseCode = responseCode;
+            this.debugMessage = debugMessage;
+            this.attempts = attempts;
+        }
+
+        public boolean isSuccess() {
+            return responseCode == BillingClient.BillingResponseCode.OK;
+        }
+    }
+
+    private static final class Task {
+        final Request request;
+        int attempts;
+
+        Task(Request request) {
+            this.request = request;
+        }
+    }
+}
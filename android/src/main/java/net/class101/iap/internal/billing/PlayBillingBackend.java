@@ -0,0 +1,141 @@
+package net.class101.iap.internal.billing;
+
+import android.app.Activity;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PendingPurchasesParams;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+import com.android.billingclient.api.UserChoiceBillingListener;
+import com.facebook.common.internal.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * {@link BillingBackend} backed by Google Play's {@link BillingClient}.
+ */
+public class PlayBillingBackend implements BillingBackend {
+    private final BillingClient client;
+    // Params built by prepareBillingFlow. Requests are cached by the module, so they are looked up
+    // by identity and dropped once the module lets go of them.
+    private final Map<BillingFlowRequest, BillingFlowParams> preparedParams = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public PlayBillingBackend(@NonNull Context context, @NonNull PurchasesUpdatedListener purchasesUpdatedListener, @Nullable UserChoiceBillingListener userChoiceBillingListener) {
+        BillingClient.Builder builder = BillingClient.newBuilder(context)
+                .setListener(purchasesUpdatedListener)
+                .enablePendingPurchases(PendingPurchasesParams.newBuilder().enableOneTimeProducts().build());
+
+        if (userChoiceBillingListener != null) {
+            builder.enableUserChoiceBilling(userChoiceBillingListener);
+        }
+
+        this.client = builder.build();
+    }
+
+    public static Factory factory(@NonNull Context context) {
+        return (purchasesUpdatedListener, userChoiceBillingListener) -> new PlayBillingBackend(context, purchasesUpdatedListener, userChoiceBillingListener);
+    }
+
+    @Override
+    public boolean isReady() {
+        return client.isReady();
+    }
+
+    @Override
+    public void startConnection(@NonNull BillingClientStateListener listener) {
+        client.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        client.endConnection();
+    }
+
+    @Override
+    public void queryProductDetails(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener) {
+        List<QueryProductDetailsParams.Product> productList = new ArrayList<>(products.size());
+        for (ProductKey key : products) {
+            productList.add(key.toQueryProduct());
+        }
+
+        client.queryProductDetailsAsync(QueryProductDetailsParams.newBuilder().setProductList(productList).build(), listener);
+    }
+
+    @Override
+    public void queryPurchases(@NonNull String productType, @NonNull PurchasesResponseListener listener) {
+        client.queryPurchasesAsync(QueryPurchasesParams.newBuilder().setProductType(productType).build(), listener);
+    }
+
+    @Override
+    public void prepareBillingFlow(@NonNull BillingFlowRequest request) {
+        preparedParams.put(request, buildBillingFlowParams(request));
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(@Nullable Activity activity, @NonNull BillingFlowRequest request) {
+        BillingFlowParams params = preparedParams.get(request);
+        if (params == null) {
+            params = buildBillingFlowParams(request);
+        }
+
+        return client.launchBillingFlow(activity, params);
+    }
+
+    private static BillingFlowParams buildBillingFlowParams(BillingFlowRequest request) {
+        BillingFlowParams.Builder builder = BillingFlowParams.newBuilder();
+
+        if (request.obfuscatedAccountId != null) {
+            builder.setObfuscatedAccountId(request.obfuscatedAccountId);
+        }
+
+        if (request.obfuscatedProfileId != null) {
+            builder.setObfuscatedProfileId(request.obfuscatedProfileId);
+        }
+
+        if (request.oldPurchaseToken != null) {
+            builder.setSubscriptionUpdateParams(
+                    BillingFlowParams.SubscriptionUpdateParams.newBuilder()
+                            .setOldPurchaseToken(request.oldPurchaseToken)
+                            .build()
+            );
+        }
+
+        BillingFlowParams.ProductDetailsParams.Builder productDetailsParamsBuilder = BillingFlowParams.ProductDetailsParams.newBuilder();
+        productDetailsParamsBuilder.setProductDetails(request.productDetails);
+
+        if (request.offerToken != null) {
+            productDetailsParamsBuilder.setOfferToken(request.offerToken);
+        }
+
+        ImmutableList<BillingFlowParams.ProductDetailsParams> productDetailsParamsList = ImmutableList.of(productDetailsParamsBuilder.build());
+        return builder.setProductDetailsParamsList(productDetailsParamsList).build();
+    }
+
+    @Override
+    public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+        client.consumeAsync(ConsumeParams.newBuilder().setPurchaseToken(purchaseToken).build(), listener);
+    }
+
+    @Override
+    public void acknowledge(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+        client.acknowledgePurchase(AcknowledgePurchaseParams.newBuilder().setPurchaseToken(purchaseToken).build(), listener);
+    }
+}
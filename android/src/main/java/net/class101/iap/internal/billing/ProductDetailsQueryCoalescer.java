@@ -0,0 +1,181 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges product details queries that arrive within a short window into deduplicated,
+ * bounded chunks. Keys that are already in flight are joined instead of queried again,
+ * and every caller only receives the details it asked for. Each chunk holds a single product
+ * type, since Play rejects queries that mix them.
+ */
+public class ProductDetailsQueryCoalescer {
+    public interface Fetcher {
+        void fetch(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener);
+    }
+
+    private final Fetcher fetcher;
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final int maxChunkSize;
+
+    private final List<Waiter> pending = new ArrayList<>();
+    private final Map<ProductKey, Chunk> inFlight = new HashMap<>();
+    private boolean isFlushScheduled;
+
+    public ProductDetailsQueryCoalescer(@NonNull Fetcher fetcher, long windowMillis, int maxChunkSize) {
+        this.fetcher = fetcher;
+        this.windowMillis = windowMillis;
+        this.maxChunkSize = maxChunkSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rniap-product-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void query(@NonNull Collection<ProductKey> keys, @NonNull ProductDetailsResponseListener listener) {
+        if (keys.isEmpty()) {
+            listener.onProductDetailsResponse(
+                    BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build(),
+                    Collections.emptyList()
+            );
+            return;
+        }
+
+        synchronized (this) {
+            pending.add(new Waiter(new LinkedHashSet<>(keys), listener));
+
+            if (!isFlushScheduled) {
+                isFlushScheduled = true;
+                scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flush() {
+        List<Chunk> dispatched = new ArrayList<>();
+
+        synchronized (this) {
+            isFlushScheduled = false;
+
+            Map<String, Chunk> currentByType = new HashMap<>();
+            for (Waiter waiter : pending) {
+                for (ProductKey key : waiter.keys) {
+                    Chunk chunk = inFlight.get(key);
+
+                    if (chunk == null) {
+                        Chunk current = currentByType.get(key.productType);
+                        if (current == null || current.keys.size() >= maxChunkSize) {
+                            current = new Chunk();
+                            currentByType.put(key.productType, current);
+                            dispatched.add(current);
+                        }
+                        chunk = current;
+                        chunk.keys.add(key);
+                        inFlight.put(key, chunk);
+                    }
+
+                    if (waiter.chunks.add(chunk)) {
+                        chunk.waiters.add(waiter);
+                    }
+                }
+                waiter.remaining = waiter.chunks.size();
+            }
+            pending.clear();
+        }
+
+        for (Chunk chunk : dispatched) {
+            try {
+                fetcher.fetch(chunk.keys, (result, productDetailsList) -> onChunkFinished(chunk, result, productDetailsList));
+            } catch (RuntimeException e) {
+                // Otherwise the keys would stay in flight and every later query for them would hang.
+                onChunkFinished(chunk, BillingResult.newBuilder()
+                        .setResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+                        .setDebugMessage(String.valueOf(e.getMessage()))
+                        .build(), Collections.emptyList());
+            }
+        }
+    }
+
+    private void onChunkFinished(Chunk chunk, BillingResult result, List<ProductDetails> productDetailsList) {
+        List<Waiter> completed = new ArrayList<>();
+
+        synchronized (this) {
+            if (chunk.result != null) {
+                return;
+            }
+            chunk.result = result;
+            chunk.productDetailsList = productDetailsList != null ? productDetailsList : Collections.emptyList();
+
+            for (ProductKey key : chunk.keys) {
+                inFlight.remove(key, chunk);
+            }
+
+            for (Waiter waiter : chunk.waiters) {
+                if (--waiter.remaining == 0) {
+                    completed.add(waiter);
+                }
+            }
+        }
+
+        for (Waiter waiter : completed) {
+            deliver(waiter);
+        }
+    }
+
+    private void deliver(Waiter waiter) {
+        List<ProductDetails> slice = new ArrayList<>();
+
+        for (Chunk chunk : waiter.chunks) {
+            if (chunk.result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                waiter.listener.onProductDetailsResponse(chunk.result, Collections.emptyList());
+                return;
+            }
+
+            for (ProductDetails productDetails : chunk.productDetailsList) {
+                if (waiter.keys.contains(new ProductKey(productDetails.getProductId(), productDetails.getProductType()))) {
+                    slice.add(productDetails);
+                }
+            }
+        }
+
+        BillingResult ok = BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build();
+        waiter.listener.onProductDetailsResponse(ok, slice);
+    }
+
+    private static final class Waiter {
+        final Set<ProductKey> keys;
+        final ProductDetailsResponseListener listener;
+        final Set<Chunk> chunks = new LinkedHashSet<>();
+        int remaining;
+
+        Waiter(Set<ProductKey> keys, ProductDetailsResponseListener listener) {
+            this.keys = keys;
+            this.listener = listener;
+        }
+    }
+
+    private static final class Chunk {
+        final List<ProductKey> keys = new ArrayList<>();
+        final List<Waiter> waiters = new ArrayList<>();
+        BillingResult result;
+        List<ProductDetails> productDetailsList;
+    }
+}
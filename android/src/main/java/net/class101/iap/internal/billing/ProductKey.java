@@ -0,0 +1,45 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.QueryProductDetailsParams;
+
+public final class ProductKey {
+    public final String productId;
+    public final String productType;
+
+    public ProductKey(@NonNull String productId, @NonNull String productType) {
+        this.productId = productId;
+        this.productType = productType;
+    }
+
+    QueryProductDetailsParams.Product toQueryProduct() {
+        return QueryProductDetailsParams.Product.newBuilder()
+                .setProductId(productId)
+                .setProductType(productType)
+                .build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ProductKey)) {
+            return false;
+        }
+        ProductKey other = (ProductKey) o;
+        return productId.equals(other.productId) && productType.equals(other.productType);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * productId.hashCode() + productType.hashCode();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return productType + ":" + productId;
+    }
+}
@@ -0,0 +1,89 @@
+package net.class101.iap.internal.billing;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queries purchases of several product types at the same time and merges the results in the
+ * order the types were given.
+ */
+public class PurchasesQuery {
+    public interface Listener {
+        default void onTypeFinished(@NonNull String productType, @NonNull List<Purchase> purchases) {
+        }
+
+        void onComplete(@NonNull List<Purchase> purchases);
+
+        void onError(@NonNull BillingResult result);
+    }
+
+    public static final List<String> ALL_TYPES = Collections.unmodifiableList(
+            Arrays.asList(BillingClient.ProductType.INAPP, BillingClient.ProductType.SUBS)
+    );
+
+    private final List<String> productTypes;
+    private final Listener listener;
+    private final List<List<Purchase>> results;
+
+    private int remaining;
+    private boolean isFinished;
+
+    private PurchasesQuery(List<String> productTypes, Listener listener) {
+        this.productTypes = productTypes;
+        this.listener = listener;
+        this.results = new ArrayList<>(Collections.nCopies(productTypes.size(), null));
+        this.remaining = productTypes.size();
+    }
+
+    public static void run(@NonNull BillingBackend backend, @NonNull List<String> productTypes, @NonNull Listener listener) {
+        PurchasesQuery query = new PurchasesQuery(productTypes, listener);
+
+        for (int i = 0; i < productTypes.size(); i++) {
+            final int slot = i;
+            backend.queryPurchases(productTypes.get(i), (result, purchases) -> query.onResponse(slot, result, purchases));
+        }
+    }
+
+    private void onResponse(int slot, BillingResult result, List<Purchase> purchases) {
+        List<Purchase> merged = null;
+
+        synchronized (this) {
+            if (isFinished) {
+                return;
+            }
+
+            if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                isFinished = true;
+            } else {
+                results.set(slot, purchases != null ? purchases : Collections.emptyList());
+
+                if (--remaining == 0) {
+                    isFinished = true;
+                    merged = new ArrayList<>();
+                    for (List<Purchase> typePurchases : results) {
+                        merged.addAll(typePurchases);
+                    }
+                }
+            }
+        }
+
+        if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+            listener.onError(result);
+            return;
+        }
+
+        listener.onTypeFinished(productTypes.get(slot), results.get(slot));
+
+        if (merged != null) {
+            listener.onComplete(merged);
+        }
+    }
+}
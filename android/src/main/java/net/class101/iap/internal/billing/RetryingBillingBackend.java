@@ -0,0 +1,95 @@
+package net.class101.iap.internal.billing;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the asynchronous calls of a backend through a {@link BillingRetryPolicy}. Listeners are
+ * still called exactly once, with the result of the last attempt.
+ */
+final class RetryingBillingBackend implements BillingBackend {
+    private final BillingBackend delegate;
+    private final BillingRetryPolicy policy;
+
+    RetryingBillingBackend(@NonNull BillingBackend delegate, @NonNull BillingRetryPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    @Override
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    @Override
+    public void startConnection(@NonNull BillingClientStateListener listener) {
+        delegate.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        delegate.endConnection();
+    }
+
+    @Override
+    public void queryProductDetails(@NonNull List<ProductKey> products, @NonNull ProductDetailsResponseListener listener) {
+        policy.execute(
+                BillingRetryPolicy.Operation.QUERY_PRODUCT_DETAILS,
+                done -> delegate.queryProductDetails(products, done::accept),
+                Collections.emptyList(),
+                listener::onProductDetailsResponse
+        );
+    }
+
+    @Override
+    public void queryPurchases(@NonNull String productType, @NonNull PurchasesResponseListener listener) {
+        policy.execute(
+                BillingRetryPolicy.Operation.QUERY_PURCHASES,
+                done -> delegate.queryPurchases(productType, done::accept),
+                Collections.emptyList(),
+                listener::onQueryPurchasesResponse
+        );
+    }
+
+    @Override
+    public void prepareBillingFlow(@NonNull BillingFlowRequest request) {
+        delegate.prepareBillingFlow(request);
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(@Nullable Activity activity, @NonNull BillingFlowRequest request) {
+        return delegate.launchBillingFlow(activity, request);
+    }
+
+    @Override
+    public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+        policy.execute(
+                BillingRetryPolicy.Operation.CONSUME,
+                done -> delegate.consume(purchaseToken, done::accept),
+                purchaseToken,
+                listener::onConsumeResponse
+        );
+    }
+
+    @Override
+    public void acknowledge(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+        policy.execute(
+                BillingRetryPolicy.Operation.ACKNOWLEDGE,
+                done -> delegate.acknowledge(purchaseToken, result -> done.accept(result, null)),
+                null,
+                (result, ignored) -> listener.onAcknowledgePurchaseResponse(result)
+        );
+    }
+}
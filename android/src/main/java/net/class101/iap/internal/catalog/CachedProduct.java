@@ -0,0 +1,236 @@
+package net.class101.iap.internal.catalog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class CachedProduct {
+    public final String productId;
+    public final String type;
+    public final String title;
+    public final String description;
+    @Nullable
+    public final PricingPhase oneTimeOffer;
+    public final List<Offer> offers;
+    public final long fetchedAt;
+    public final long expiresAt;
+
+    CachedProduct(String productId, String type, String title, String description, @Nullable PricingPhase oneTimeOffer, List<Offer> offers, long fetchedAt, long expiresAt) {
+        this.productId = productId;
+        this.type = type;
+        this.title = title;
+        this.description = description;
+        this.oneTimeOffer = oneTimeOffer;
+        this.offers = Collections.unmodifiableList(offers);
+        this.fetchedAt = fetchedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    @Nullable
+    public Offer findOffer(@Nullable String planId, @Nullable String offerId) {
+        for (Offer offer : offers) {
+            if (planId != null && !offer.basePlanId.equals(planId)) {
+                continue;
+            }
+            if (offerId != null && (offer.offerId == null || !offer.offerId.equals(offerId))) {
+                continue;
+            }
+            return offer;
+        }
+        return null;
+    }
+
+    static CachedProduct from(@NonNull ProductDetails details, long now, long ttl) {
+        PricingPhase oneTimeOffer = null;
+        ProductDetails.OneTimePurchaseOfferDetails oneTimeOfferDetails = details.getOneTimePurchaseOfferDetails();
+        if (oneTimeOfferDetails != null) {
+            oneTimeOffer = new PricingPhase(
+                    oneTimeOfferDetails.getFormattedPrice(),
+                    oneTimeOfferDetails.getPriceAmountMicros(),
+                    oneTimeOfferDetails.getPriceCurrencyCode(),
+                    null,
+                    1,
+                    ProductDetails.RecurrenceMode.NON_RECURRING
+            );
+        }
+
+        List<Offer> offers = new ArrayList<>();
+        List<ProductDetails.SubscriptionOfferDetails> offerDetailsList = details.getSubscriptionOfferDetails();
+        if (offerDetailsList != null) {
+            for (ProductDetails.SubscriptionOfferDetails offerDetails : offerDetailsList) {
+                List<PricingPhase> phases = new ArrayList<>();
+                for (ProductDetails.PricingPhase phase : offerDetails.getPricingPhases().getPricingPhaseList()) {
+                    phases.add(new PricingPhase(
+                            phase.getFormattedPrice(),
+                            phase.getPriceAmountMicros(),
+                            phase.getPriceCurrencyCode(),
+                            phase.getBillingPeriod(),
+                            phase.getBillingCycleCount(),
+                            phase.getRecurrenceMode()
+                    ));
+                }
+                offers.add(new Offer(offerDetails.getBasePlanId(), offerDetails.getOfferId(), offerDetails.getOfferToken(), phases));
+            }
+        }
+
+        return new CachedProduct(
+                details.getProductId(),
+                details.getProductType(),
+                details.getTitle(),
+                details.getDescription(),
+                oneTimeOffer,
+                offers,
+                now,
+                now + ttl
+        );
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("productId", productId);
+        json.put("type", type);
+        json.put("title", title);
+        json.put("description", description);
+        json.put("fetchedAt", fetchedAt);
+        json.put("expiresAt", expiresAt);
+
+        if (oneTimeOffer != null) {
+            json.put("oneTimeOffer", oneTimeOffer.toJson());
+        }
+
+        JSONArray offersJson = new JSONArray();
+        for (Offer offer : offers) {
+            offersJson.put(offer.toJson());
+        }
+        json.put("offers", offersJson);
+
+        return json;
+    }
+
+    static CachedProduct fromJson(JSONObject json) throws JSONException {
+        JSONObject oneTimeOfferJson = json.optJSONObject("oneTimeOffer");
+
+        List<Offer> offers = new ArrayList<>();
+        JSONArray offersJson = json.optJSONArray("offers");
+        if (offersJson != null) {
+            for (int i = 0; i < offersJson.length(); i++) {
+                offers.add(Offer.fromJson(offersJson.getJSONObject(i)));
+            }
+        }
+
+        return new CachedProduct(
+                json.getString("productId"),
+                json.getString("type"),
+                json.optString("title", ""),
+                json.optString("description", ""),
+                oneTimeOfferJson != null ? PricingPhase.fromJson(oneTimeOfferJson) : null,
+                offers,
+                json.getLong("fetchedAt"),
+                json.getLong("expiresAt")
+        );
+    }
+
+    public static final class Offer {
+        public final String basePlanId;
+        @Nullable
+        public final String offerId;
+        public final String offerToken;
+        public final List<PricingPhase> pricingPhases;
+
+        Offer(String basePlanId, @Nullable String offerId, String offerToken, List<PricingPhase> pricingPhases) {
+            this.basePlanId = basePlanId;
+            this.offerId = offerId;
+            this.offerToken = offerToken;
+            this.pricingPhases = Collections.unmodifiableList(pricingPhases);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("basePlanId", basePlanId);
+            if (offerId != null) {
+                json.put("offerId", offerId);
+            }
+            json.put("offerToken", offerToken);
+
+            JSONArray phasesJson = new JSONArray();
+            for (PricingPhase phase : pricingPhases) {
+                phasesJson.put(phase.toJson());
+            }
+            json.put("pricingPhases", phasesJson);
+
+            return json;
+        }
+
+        static Offer fromJson(JSONObject json) throws JSONException {
+            List<PricingPhase> phases = new ArrayList<>();
+            JSONArray phasesJson = json.getJSONArray("pricingPhases");
+            for (int i = 0; i < phasesJson.length(); i++) {
+                phases.add(PricingPhase.fromJson(phasesJson.getJSONObject(i)));
+            }
+
+            return new Offer(
+                    json.getString("basePlanId"),
+                    json.has("offerId") ? json.getString("offerId") : null,
+                    json.getString("offerToken"),
+                    phases
+            );
+        }
+    }
+
+    public static final class PricingPhase {
+        public final String formattedPrice;
+        public final long priceAmountMicros;
+        public final String currencyCode;
+        @Nullable
+        public final String billingPeriod;
+        public final int billingCycleCount;
+        public final int recurrenceMode;
+
+        PricingPhase(String formattedPrice, long priceAmountMicros, String currencyCode, @Nullable String billingPeriod, int billingCycleCount, int recurrenceMode) {
+            this.formattedPrice = formattedPrice;
+            this.priceAmountMicros = priceAmountMicros;
+            this.currencyCode = currencyCode;
+            this.billingPeriod = billingPeriod;
+            this.billingCycleCount = billingCycleCount;
+            this.recurrenceMode = recurrenceMode;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("price", formattedPrice);
+            json.put("priceAmountMicros", priceAmountMicros);
+            json.put("currency", currencyCode);
+            if (billingPeriod != null) {
+                json.put("billingPeriod", billingPeriod);
+            }
+            json.put("billingCycleCount", billingCycleCount);
+            json.put("recurrenceMode", recurrenceMode);
+
+            return json;
+        }
+
+        static PricingPhase fromJson(JSONObject json) throws JSONException {
+            return new PricingPhase(
+                    json.getString("price"),
+                    json.getLong("priceAmountMicros"),
+                    json.getString("currency"),
+                    json.has("billingPeriod") ? json.getString("billingPeriod") : null,
+                    json.optInt("billingCycleCount", 0),
+                    json.optInt("recurrenceMode", ProductDetails.RecurrenceMode.NON_RECURRING)
+            );
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.class101.iap.internal.catalog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * {@link ProductDetails} with its subscription offers keyed by (basePlanId, offerId). A null
+ * component matches any value, and the first offer in Play's order wins, as a linear scan would.
+ */
+public final class IndexedProduct {
+    public final ProductDetails details;
+    private final Map<OfferKey, ProductDetails.SubscriptionOfferDetails> offers;
+
+    IndexedProduct(@NonNull ProductDetails details) {
+        this.details = details;
+
+        List<ProductDetails.SubscriptionOfferDetails> offerDetailsList = details.getSubscriptionOfferDetails();
+        if (offerDetailsList == null || offerDetailsList.isEmpty()) {
+            this.offers = Collections.emptyMap();
+            return;
+        }
+
+        Map<OfferKey, ProductDetails.SubscriptionOfferDetails> offers = new HashMap<>(offerDetailsList.size() * 4);
+        for (ProductDetails.SubscriptionOfferDetails offerDetails : offerDetailsList) {
+            String planId = offerDetails.getBasePlanId();
+            String offerId = offerDetails.getOfferId();
+
+            offers.putIfAbsent(new OfferKey(null, null), offerDetails);
+            offers.putIfAbsent(new OfferKey(planId, null), offerDetails);
+
+            if (offerId != null) {
+                offers.putIfAbsent(new OfferKey(null, offerId), offerDetails);
+                offers.putIfAbsent(new OfferKey(planId, offerId), offerDetails);
+            }
+        }
+        this.offers = Collections.unmodifiableMap(offers);
+    }
+
+    public String getProductId() {
+        return details.getProductId();
+    }
+
+    @Nullable
+    public ProductDetails.SubscriptionOfferDetails findOffer(@Nullable String planId, @Nullable String offerId) {
+        if (offers.isEmpty()) {
+            return null;
+        }
+        return offers.get(new OfferKey(planId, offerId));
+    }
+
+    @Nullable
+    public String findOfferToken(@Nullable String planId, @Nullable String offerId) {
+        ProductDetails.SubscriptionOfferDetails offerDetails = findOffer(planId, offerId);
+        return offerDetails != null ? offerDetails.getOfferToken() : null;
+    }
+
+    private static final class OfferKey {
+        final String planId;
+        final String offerId;
+
+        OfferKey(@Nullable String planId, @Nullable String offerId) {
+            this.planId = planId;
+            this.offerId = offerId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof OfferKey)) {
+                return false;
+            }
+            OfferKey other = (OfferKey) o;
+            return Objects.equals(planId, other.planId) && Objects.equals(offerId, other.offerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(planId) + Objects.hashCode(offerId);
+        }
+    }
+}
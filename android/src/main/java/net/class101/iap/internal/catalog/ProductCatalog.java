@@ -0,0 +1,112 @@
+package net.class101.iap.internal.catalog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Products fetched so far, published as immutable snapshots. Readers take the current snapshot
+ * without locking. Each query result is merged into a copy that replaces the snapshot in one
+ * step, so a reader sees either none or all of a result.
+ */
+public final class ProductCatalog {
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(Snapshot.EMPTY);
+
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    @Nullable
+    public IndexedProduct get(@NonNull String productId) {
+        return current.get().get(productId);
+    }
+
+    /**
+     * Merges the result of a query issued at {@code requestedAt} ({@link System#nanoTime}).
+     * Products already published by a query issued later are kept, so overlapping queries that
+     * finish out of order cannot replace fresh details with stale ones.
+     */
+    public Snapshot publish(@NonNull ProductDetailsIndex index, long requestedAt) {
+        while (true) {
+            Snapshot base = current.get();
+            Snapshot next = base.merge(index, requestedAt);
+            if (next == base || current.compareAndSet(base, next)) {
+                return next;
+            }
+        }
+    }
+
+    public static final class Snapshot implements ProductLookup {
+        static final Snapshot EMPTY = new Snapshot(0, Collections.emptyMap());
+
+        /**
+         * Incremented by every publish that changed the catalog.
+         */
+        public final long generation;
+        private final Map<String, Entry> entries;
+
+        private Snapshot(long generation, Map<String, Entry> entries) {
+            this.generation = generation;
+            this.entries = entries;
+        }
+
+        @Override
+        @Nullable
+        public IndexedProduct get(@NonNull String productId) {
+            Entry entry = entries.get(productId);
+            return entry != null ? entry.product : null;
+        }
+
+        /**
+         * Whether every product is present and was queried at most {@code maxAgeNanos} before
+         * {@code now} ({@link System#nanoTime}). With {@code maxAgeNanos} of
+         * {@link Long#MAX_VALUE}, only presence is checked.
+         */
+        public boolean containsAll(@NonNull Collection<String> productIds, long now, long maxAgeNanos) {
+            for (String productId : productIds) {
+                Entry entry = entries.get(productId);
+                if (entry == null || now - entry.requestedAt > maxAgeNanos) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        private Snapshot merge(ProductDetailsIndex index, long requestedAt) {
+            Map<String, Entry> merged = null;
+
+            for (IndexedProduct product : index.products()) {
+                Entry entry = entries.get(product.getProductId());
+                if (entry != null && entry.requestedAt - requestedAt > 0) {
+                    continue;
+                }
+
+                if (merged == null) {
+                    merged = new HashMap<>(entries);
+                }
+                merged.put(product.getProductId(), new Entry(product, requestedAt));
+            }
+
+            return merged != null ? new Snapshot(generation + 1, Collections.unmodifiableMap(merged)) : this;
+        }
+    }
+
+    private static final class Entry {
+        final IndexedProduct product;
+        final long requestedAt;
+
+        Entry(IndexedProduct product, long requestedAt) {
+            this.product = product;
+            this.requestedAt = requestedAt;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package net.class101.iap.internal.catalog;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Disk-backed product catalog keyed by productId, with a per-entry TTL and LRU eviction.
+ * <p>
+ * The file is read on the disk executor the first time the cache is used; until it has been read
+ * every lookup misses, so callers query Play instead of waiting on the disk.
+ */
+public class ProductCatalogCache {
+    private static final String TAG = "ProductCatalogCache";
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final ExecutorService diskExecutor;
+    private final LinkedHashMap<String, CachedProduct> entries;
+
+    private long ttl;
+    private int maxEntries;
+    private boolean loaded;
+    private boolean loading;
+
+    public ProductCatalogCache(@NonNull File file) {
+        this.file = file;
+        this.diskExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "rniap-catalog-cache"));
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized void configure(long ttl, int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        ensureLoaded();
+        if (loaded && evict(System.currentTimeMillis())) {
+            persist();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return ttl > 0 && maxEntries > 0;
+    }
+
+    @Nullable
+    public synchronized CachedProduct get(@NonNull String productId) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        ensureLoaded();
+        CachedProduct product = entries.get(productId);
+
+        if (product == null || product.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+
+        return product;
+    }
+
+    public synchronized void putAll(@NonNull List<ProductDetails> productDetailsList) {
+        if (!isEnabled() || productDetailsList.isEmpty()) {
+            return;
+        }
+
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+
+        for (ProductDetails productDetails : productDetailsList) {
+            entries.put(productDetails.getProductId(), CachedProduct.from(productDetails, now, ttl));
+        }
+
+        evict(now);
+        persist();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        // A read still in flight would bring back what is being deleted.
+        loaded = true;
+        loading = false;
+        diskExecutor.execute(() -> {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Failed to delete product catalog cache");
+            }
+        });
+    }
+
+    private boolean evict(long now) {
+        boolean changed = false;
+
+        Iterator<Map.Entry<String, CachedProduct>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().isExpired(now)) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+
+        iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            changed = true;
+        }
+
+        return changed;
+    }
+
+    private void ensureLoaded() {
+        if (loaded || loading) {
+            return;
+        }
+        loading = true;
+
+        diskExecutor.execute(() -> {
+            List<CachedProduct> stored = read();
+
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                loaded = true;
+                loading = false;
+
+                // Products put while the file was being read are newer, so they win and stay the
+                // most recently used.
+                Map<String, CachedProduct> fresh = new LinkedHashMap<>(entries);
+                entries.clear();
+                for (CachedProduct product : stored) {
+                    entries.put(product.productId, product);
+                }
+                entries.putAll(fresh);
+
+                if (isEnabled() && (evict(System.currentTimeMillis()) || !fresh.isEmpty())) {
+                    persist();
+                }
+            }
+        });
+    }
+
+    private List<CachedProduct> read() {
+        List<CachedProduct> stored = new ArrayList<>();
+
+        if (!file.exists()) {
+            return stored;
+        }
+
+        try (InputStream stream = new FileInputStream(file)) {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = stream.read(buffer, offset, buffer.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+
+            JSONObject json = new JSONObject(new String(buffer, 0, offset, StandardCharsets.UTF_8));
+            if (json.optInt("version") != VERSION) {
+                return stored;
+            }
+
+            JSONArray products = json.getJSONArray("products");
+            for (int i = 0; i < products.length(); i++) {
+                stored.add(CachedProduct.fromJson(products.getJSONObject(i)));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable product catalog cache", e);
+            stored.clear();
+        }
+
+        return stored;
+    }
+
+    private void persist() {
+        // Writing before the file has been read would drop what it holds; the read persists instead.
+        if (!loaded) {
+            return;
+        }
+
+        final String serialized;
+
+        try {
+            JSONArray products = new JSONArray();
+            for (CachedProduct product : new ArrayList<>(entries.values())) {
+                products.put(product.toJson());
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("products", products);
+            serialized = json.toString();
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to serialize product catalog cache", e);
+            return;
+        }
+
+        diskExecutor.execute(() -> {
+            File temp = new File(file.getPath() + ".tmp");
+
+            try (OutputStream stream = new FileOutputStream(temp)) {
+                stream.write(serialized.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write product catalog cache", e);
+                return;
+            }
+
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Failed to replace product catalog cache");
+            }
+        });
+    }
+}
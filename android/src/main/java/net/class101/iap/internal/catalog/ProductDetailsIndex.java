@@ -0,0 +1,43 @@
+package net.class101.iap.internal.catalog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable productId lookup over a single product details query result.
+ */
+public final class ProductDetailsIndex implements ProductLookup {
+    private final Map<String, IndexedProduct> products;
+
+    private ProductDetailsIndex(Map<String, IndexedProduct> products) {
+        this.products = products;
+    }
+
+    public static ProductDetailsIndex of(@NonNull List<ProductDetails> productDetailsList) {
+        Map<String, IndexedProduct> products = new HashMap<>(productDetailsList.size() * 2);
+
+        for (ProductDetails productDetails : productDetailsList) {
+            products.putIfAbsent(productDetails.getProductId(), new IndexedProduct(productDetails));
+        }
+
+        return new ProductDetailsIndex(Collections.unmodifiableMap(products));
+    }
+
+    @Override
+    @Nullable
+    public IndexedProduct get(@NonNull String productId) {
+        return products.get(productId);
+    }
+
+    public Collection<IndexedProduct> products() {
+        return products.values();
+    }
+}
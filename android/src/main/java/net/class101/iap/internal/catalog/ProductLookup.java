@@ -0,0 +1,12 @@
+package net.class101.iap.internal.catalog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Finds fetched products by productId.
+ */
+public interface ProductLookup {
+    @Nullable
+    IndexedProduct get(@NonNull String productId);
+}
@@ -0,0 +1,203 @@
+package net.class101.iap.internal.entitlements;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Products the user currently owns, kept in memory so they can be read synchronously. Reads take
+ * an immutable snapshot without locking. Writers come from purchase updates, full purchase
+ * queries and finalizations; a full query replaces the table, except for changes made after the
+ * query was issued.
+ */
+public class EntitlementTable {
+    public static final class Entitlement {
+        public final String productId;
+        public final String purchaseToken;
+        public final long purchaseTime;
+        public final boolean isAutoRenewing;
+        public final boolean isAcknowledged;
+        final long updatedAt;
+
+        Entitlement(String productId, String purchaseToken, long purchaseTime, boolean isAutoRenewing, boolean isAcknowledged, long updatedAt) {
+            this.productId = productId;
+            this.purchaseToken = purchaseToken;
+            this.purchaseTime = purchaseTime;
+            this.isAutoRenewing = isAutoRenewing;
+            this.isAcknowledged = isAcknowledged;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    // Recently consumed tokens, so a query issued before the consume cannot bring them back.
+    private final Map<String, Long> consumedTokens = new HashMap<>();
+
+    private volatile Map<String, Entitlement> entitlements = Collections.emptyMap();
+    @Nullable
+    private ScheduledFuture<?> scheduledRefresh;
+
+    public EntitlementTable() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rniap-entitlements");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean has(@NonNull String productId) {
+        return entitlements.containsKey(productId);
+    }
+
+    public Collection<Entitlement> getAll() {
+        return entitlements.values();
+    }
+
+    /**
+     * Adds purchases that completed. Pending purchases do not grant anything yet.
+     */
+    public synchronized void add(@NonNull List<Purchase> purchases) {
+        long now = System.nanoTime();
+        Map<String, Entitlement> updated = null;
+
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+
+            if (updated == null) {
+                updated = new HashMap<>(entitlements);
+            }
+            put(updated, purchase, now);
+        }
+
+        if (updated != null) {
+            entitlements = Collections.unmodifiableMap(updated);
+        }
+    }
+
+    /**
+     * Replaces the table with the result of a purchases query covering every product type, issued
+     * at {@code requestedAt} ({@link System#nanoTime}).
+     */
+    public synchronized void replace(@NonNull List<Purchase> purchases, long requestedAt) {
+        Map<String, Entitlement> replaced = new HashMap<>();
+
+        for (Entitlement entitlement : entitlements.values()) {
+            if (entitlement.updatedAt - requestedAt > 0) {
+                replaced.put(entitlement.productId, entitlement);
+            }
+        }
+
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+
+            Long consumedAt = consumedTokens.get(purchase.getPurchaseToken());
+            if (consumedAt != null && consumedAt - requestedAt > 0) {
+                continue;
+            }
+
+            for (String productId : purchase.getProducts()) {
+                if (!replaced.containsKey(productId)) {
+                    replaced.put(productId, entitlement(productId, purchase, requestedAt));
+                }
+            }
+        }
+
+        Iterator<Long> iterator = consumedTokens.values().iterator();
+        while (iterator.hasNext()) {
+            if (requestedAt - iterator.next() >= 0) {
+                iterator.remove();
+            }
+        }
+
+        entitlements = Collections.unmodifiableMap(replaced);
+    }
+
+    /**
+     * Consumed purchases stop granting their products; acknowledged ones are marked as such.
+     */
+    public synchronized void onFinalized(@NonNull String purchaseToken, boolean isConsumable) {
+        long now = System.nanoTime();
+        if (isConsumable) {
+            consumedTokens.put(purchaseToken, now);
+        }
+
+        Map<String, Entitlement> updated = null;
+
+        for (Entitlement entitlement : entitlements.values()) {
+            if (!entitlement.purchaseToken.equals(purchaseToken)) {
+                continue;
+            }
+
+            if (updated == null) {
+                updated = new HashMap<>(entitlements);
+            }
+
+            if (isConsumable) {
+                updated.remove(entitlement.productId);
+            } else {
+                updated.put(entitlement.productId, new Entitlement(
+                        entitlement.productId,
+                        purchaseToken,
+                        entitlement.purchaseTime,
+                        entitlement.isAutoRenewing,
+                        true,
+                        now
+                ));
+            }
+        }
+
+        if (updated != null) {
+            entitlements = Collections.unmodifiableMap(updated);
+        }
+    }
+
+    /**
+     * Runs {@code refresh} every {@code intervalMillis}, replacing any earlier schedule. Zero or
+     * less stops refreshing.
+     */
+    public synchronized void scheduleRefresh(long intervalMillis, @NonNull Runnable refresh) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+
+        if (intervalMillis <= 0) {
+            return;
+        }
+
+        scheduledRefresh = scheduler.scheduleWithFixedDelay(refresh, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void put(Map<String, Entitlement> entitlements, Purchase purchase, long updatedAt) {
+        for (String productId : purchase.getProducts()) {
+            entitlements.put(productId, entitlement(productId, purchase, updatedAt));
+        }
+    }
+
+    private static Entitlement entitlement(String productId, Purchase purchase, long updatedAt) {
+        return new Entitlement(
+                productId,
+                purchase.getPurchaseToken(),
+                purchase.getPurchaseTime(),
+                purchase.isAutoRenewing(),
+                purchase.isAcknowledged(),
+                updatedAt
+        );
+    }
+}
@@ -0,0 +1,125 @@
+package net.class101.iap.internal.events;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Delivers module events to JS through an {@link Emitter}. Events of a type nobody listens to,
+ * and events the emitter could not deliver, e.g. while JS is reloading, are kept in a bounded
+ * ring, oldest dropped first. They are replayed in order once a listener for that type is added
+ * or the next event of that type is delivered.
+ * <p>
+ * The JS event emitter reports removals only as a count, so src/index.ts also reports the type
+ * through {@link #removeListener}. A type counts as listened to until its last listener is
+ * removed, or until every listener of the module is, for callers that only report the count.
+ */
+public class BillingEventStream {
+    public static final String FETCH_PRODUCTS = "InAppPurchase.onFetchProducts";
+    public static final String PURCHASES = "InAppPurchase.onPurchases";
+    public static final String ERROR = "InAppPurchase.onError";
+    public static final String ALTERNATIVE_BILLING_FLOW = "InAppPurchase.onAlternativeBillingFlow";
+
+    public interface Emitter {
+        /**
+         * Returns false, without touching {@code payload}, if the event cannot be delivered now.
+         */
+        boolean emit(@NonNull String eventName, @NonNull Object payload);
+    }
+
+    private final Emitter emitter;
+    private final int capacity;
+    private final ArrayDeque<Event> buffer;
+    private final Map<String, Integer> listenerCounts = new HashMap<>();
+    private int totalListenerCount;
+    private long droppedCount;
+
+    public BillingEventStream(@NonNull Emitter emitter, int capacity) {
+        this.emitter = emitter;
+        this.capacity = capacity;
+        this.buffer = new ArrayDeque<>(capacity);
+    }
+
+    public synchronized void emit(@NonNull String eventName, @NonNull Object payload) {
+        if (listenerCounts.containsKey(eventName) && replay(eventName) && emitter.emit(eventName, payload)) {
+            return;
+        }
+
+        if (buffer.size() >= capacity) {
+            buffer.poll();
+            droppedCount++;
+        }
+        buffer.add(new Event(eventName, payload));
+    }
+
+    public synchronized void addListener(@NonNull String eventName) {
+        listenerCounts.merge(eventName, 1, Integer::sum);
+        totalListenerCount++;
+
+        replay(eventName);
+    }
+
+    public synchronized void removeListener(@NonNull String eventName) {
+        Integer count = listenerCounts.get(eventName);
+
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            listenerCounts.put(eventName, count - 1);
+        } else {
+            listenerCounts.remove(eventName);
+        }
+    }
+
+    public synchronized void removeListeners(int count) {
+        totalListenerCount = Math.max(0, totalListenerCount - count);
+
+        if (totalListenerCount == 0) {
+            listenerCounts.clear();
+        }
+    }
+
+    /**
+     * Delivers the buffered events of {@code eventName} in order. Returns false if one could not
+     * be delivered; it and the ones after it stay buffered.
+     */
+    private boolean replay(String eventName) {
+        Iterator<Event> iterator = buffer.iterator();
+        while (iterator.hasNext()) {
+            Event event = iterator.next();
+            if (!event.name.equals(eventName)) {
+                continue;
+            }
+
+            if (!emitter.emit(event.name, event.payload)) {
+                return false;
+            }
+            iterator.remove();
+        }
+
+        return true;
+    }
+
+    public synchronized int getBufferedCount() {
+        return buffer.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private static final class Event {
+        final String name;
+        final Object payload;
+
+        Event(String name, Object payload) {
+            this.name = name;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.class101.iap.internal.journal;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.Purchase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Purchases already handed to JS, stored as a 64-bit hash of the purchase token mapped to a
+ * 64-bit hash of the purchase JSON (16 bytes per purchase). A purchase is new or changed when
+ * its token is missing or its JSON hash differs, e.g. after a pending purchase completes.
+ */
+public class DeliveredPurchaseSet {
+    private static final String TAG = "DeliveredPurchaseSet";
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Map<Long, Long> delivered = new HashMap<>();
+
+    private boolean loaded;
+
+    public DeliveredPurchaseSet(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the purchases that are new or changed since the last call and replaces the set with
+     * the given purchases, so tokens that are no longer returned by Play are forgotten.
+     */
+    public synchronized List<Purchase> update(@NonNull List<Purchase> purchases) {
+        ensureLoaded();
+
+        List<Purchase> changed = new ArrayList<>();
+        Map<Long, Long> current = new HashMap<>();
+
+        for (Purchase purchase : purchases) {
+            long token = hash(purchase.getPurchaseToken());
+            long content = hash(purchase.getOriginalJson());
+
+            Long previous = delivered.get(token);
+            if (previous == null || previous != content) {
+                changed.add(purchase);
+            }
+            current.put(token, content);
+        }
+
+        if (!current.equals(delivered)) {
+            delivered.clear();
+            delivered.putAll(current);
+            save();
+        }
+
+        return changed;
+    }
+
+    public synchronized void clear() {
+        loaded = true;
+        delivered.clear();
+
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete delivered purchases");
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (stream.readInt() != VERSION) {
+                return;
+            }
+
+            int size = stream.readInt();
+            for (int i = 0; i < size; i++) {
+                delivered.put(stream.readLong(), stream.readLong());
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Delivered purchases are truncated");
+            delivered.clear();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read delivered purchases", e);
+            delivered.clear();
+        }
+    }
+
+    private void save() {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            stream.writeInt(VERSION);
+            stream.writeInt(delivered.size());
+            for (Map.Entry<Long, Long> entry : delivered.entrySet()) {
+                stream.writeLong(entry.getKey());
+                stream.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write delivered purchases", e);
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace delivered purchases");
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units of the string.
+     */
+    private static long hash(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+}
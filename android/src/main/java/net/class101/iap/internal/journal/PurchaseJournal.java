@@ -0,0 +1,395 @@
+package net.class101.iap.internal.journal;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.Purchase;
+
+import net.class101.iap.internal.billing.FinalizePipeline;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of purchase tokens: when each one arrived, when finalization was requested
+ * and whether it completed. Lets the module list unfinalized purchases and resume interrupted
+ * finalizations without querying Play. Each record is one JSON line, synced before the next
+ * one is written; the file is compacted when it is loaded.
+ * <p>
+ * A finalization is either an acknowledgement or a consume. An acknowledged purchase still has
+ * to be consumed if it is finalized as a consumable, so the two are told apart.
+ */
+public class PurchaseJournal {
+    private static final String TAG = "PurchaseJournal";
+    private static final long FINALIZED_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int MIN_COMPACTION_RECORDS = 64;
+
+    private static final String ARRIVED = "arrived";
+    private static final String REQUESTED = "requested";
+    private static final String FINALIZED = "finalized";
+    private static final String ABANDONED = "abandoned";
+    private static final String REMOVED = "removed";
+
+    private final File file;
+    private final ExecutorService diskExecutor;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    private boolean loaded;
+
+    public PurchaseJournal(@NonNull File file) {
+        this.file = file;
+        this.diskExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "rniap-purchase-journal"));
+        this.diskExecutor.execute(() -> {
+            synchronized (this) {
+                ensureLoaded();
+            }
+        });
+    }
+
+    public synchronized void recordArrived(@NonNull Purchase purchase) {
+        ensureLoaded();
+
+        String token = purchase.getPurchaseToken();
+        if (entries.containsKey(token)) {
+            return;
+        }
+
+        Entry entry = new Entry(purchase.getOriginalJson(), purchase.getSignature());
+        entry.recordedAt = System.nanoTime();
+        entries.put(token, entry);
+        append(record(ARRIVED, token, entry));
+    }
+
+    public synchronized void recordFinalizeRequested(@NonNull String token, boolean isConsumable) {
+        ensureLoaded();
+
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            entry = new Entry(null, null);
+            entries.put(token, entry);
+        }
+        if (isFinalized(entry, isConsumable) || Boolean.valueOf(isConsumable).equals(entry.isConsumable)) {
+            return;
+        }
+
+        entry.isConsumable = isConsumable;
+        entry.recordedAt = System.nanoTime();
+        append(record(REQUESTED, token, entry));
+    }
+
+    /**
+     * Stops resuming the finalization of {@code token}, e.g. after Play rejected it for good.
+     * The purchase itself stays listed as unfinalized.
+     */
+    public synchronized void recordFinalizeAbandoned(@NonNull String token) {
+        ensureLoaded();
+
+        Entry entry = entries.get(token);
+        if (entry == null || entry.isConsumable == null || isFinalized(entry, entry.isConsumable)) {
+            return;
+        }
+
+        entry.isConsumable = null;
+        append(record(ABANDONED, token, entry));
+    }
+
+    /**
+     * Drops unfinalized tokens that a purchases query covering every product type no longer
+     * reported, e.g. because they were refunded or finalized on another device. Tokens recorded
+     * after the query was sent are kept, since the query could not have seen them.
+     */
+    public synchronized void reconcile(@NonNull Collection<Purchase> reported, long queriedAtNanos) {
+        ensureLoaded();
+
+        Set<String> reportedTokens = new HashSet<>();
+        for (Purchase purchase : reported) {
+            reportedTokens.add(purchase.getPurchaseToken());
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            Entry value = entry.getValue();
+            if (isFinalized(value, Boolean.TRUE.equals(value.isConsumable)) || value.recordedAt > queriedAtNanos || reportedTokens.contains(entry.getKey())) {
+                continue;
+            }
+
+            iterator.remove();
+            append(record(REMOVED, entry.getKey(), value));
+        }
+    }
+
+    /**
+     * @param isConsumed whether the purchase was consumed, not only acknowledged
+     */
+    public synchronized void recordFinalized(@NonNull String token, boolean isConsumed) {
+        ensureLoaded();
+
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            entry = new Entry(null, null);
+            entries.put(token, entry);
+        }
+        if (isFinalized(entry, isConsumed)) {
+            return;
+        }
+
+        entry.finalizedAt = System.currentTimeMillis();
+        entry.isConsumed = isConsumed;
+        append(record(FINALIZED, token, entry));
+    }
+
+    /**
+     * Whether finalizing {@code token} as a consumable, or not, has nothing left to do. An
+     * acknowledged purchase is finalized as a non-consumable only.
+     */
+    public synchronized boolean isFinalized(@NonNull String token, boolean isConsumable) {
+        ensureLoaded();
+
+        Entry entry = entries.get(token);
+        return entry != null && isFinalized(entry, isConsumable);
+    }
+
+    /**
+     * Purchases that arrived and are not finalized yet, in arrival order.
+     */
+    public synchronized List<Purchase> getUnfinalizedPurchases() {
+        ensureLoaded();
+
+        List<Purchase> purchases = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.finalizedAt > 0 || entry.originalJson == null) {
+                continue;
+            }
+
+            try {
+                purchases.add(new Purchase(entry.originalJson, entry.signature));
+            } catch (JSONException e) {
+                Log.w(TAG, "Skipping unreadable journaled purchase", e);
+            }
+        }
+        return purchases;
+    }
+
+    /**
+     * Finalizations that were requested but never confirmed.
+     */
+    public synchronized List<FinalizePipeline.Request> getPendingFinalizations() {
+        ensureLoaded();
+
+        List<FinalizePipeline.Request> requests = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.isConsumable != null && !isFinalized(value, value.isConsumable)) {
+                requests.add(new FinalizePipeline.Request(entry.getKey(), value.isConsumable));
+            }
+        }
+        return requests;
+    }
+
+    private JSONObject record(String op, String token, Entry entry) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("op", op);
+            json.put("token", token);
+
+            switch (op) {
+                case ARRIVED:
+                    json.put("purchase", entry.originalJson);
+                    json.put("signature", entry.signature);
+                    break;
+                case REQUESTED:
+                    json.put("consumable", entry.isConsumable);
+                    break;
+                case FINALIZED:
+                    json.put("at", entry.finalizedAt);
+                    json.put("consumed", entry.isConsumed);
+                    break;
+            }
+            return json;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void append(JSONObject record) {
+        byte[] line = (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        diskExecutor.execute(() -> {
+            try (FileOutputStream stream = new FileOutputStream(file, true)) {
+                stream.write(line);
+                stream.getFD().sync();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to append to purchase journal", e);
+            }
+        });
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        int records = 0;
+        boolean hasUnreadable = false;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    apply(new JSONObject(line));
+                    records++;
+                } catch (JSONException e) {
+                    // Left by a write torn when the process was killed. Rewriting the file
+                    // keeps the next append from being glued onto the broken line.
+                    Log.w(TAG, "Skipping unreadable purchase journal record", e);
+                    hasUnreadable = true;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read purchase journal", e);
+            return;
+        }
+
+        boolean pruned = prune(System.currentTimeMillis());
+        if (pruned || hasUnreadable || records > Math.max(MIN_COMPACTION_RECORDS, entries.size() * 2)) {
+            compact();
+        }
+    }
+
+    private void apply(JSONObject record) throws JSONException {
+        String token = record.getString("token");
+        Entry entry = entries.get(token);
+
+        switch (record.getString("op")) {
+            case ARRIVED:
+                if (entry == null) {
+                    entries.put(token, new Entry(record.optString("purchase", null), record.optString("signature", null)));
+                } else if (entry.originalJson == null) {
+                    entry.originalJson = record.optString("purchase", null);
+                    entry.signature = record.optString("signature", null);
+                }
+                break;
+            case REQUESTED:
+                if (entry == null) {
+                    entry = new Entry(null, null);
+                    entries.put(token, entry);
+                }
+                entry.isConsumable = record.getBoolean("consumable");
+                break;
+            case FINALIZED:
+                if (entry == null) {
+                    entry = new Entry(null, null);
+                    entries.put(token, entry);
+                }
+                entry.finalizedAt = record.getLong("at");
+                entry.isConsumed = entry.isConsumed || record.optBoolean("consumed");
+                break;
+            case ABANDONED:
+                if (entry != null) {
+                    entry.isConsumable = null;
+                }
+                break;
+            case REMOVED:
+                entries.remove(token);
+                break;
+        }
+    }
+
+    private static boolean isFinalized(Entry entry, boolean isConsumable) {
+        return entry.finalizedAt > 0 && (entry.isConsumed || !isConsumable);
+    }
+
+    private boolean prune(long now) {
+        boolean changed = false;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.finalizedAt > 0 && now - entry.finalizedAt > FINALIZED_RETENTION_MILLIS) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private void compact() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            String token = entry.getKey();
+            Entry value = entry.getValue();
+
+            if (value.originalJson != null) {
+                builder.append(record(ARRIVED, token, value)).append('\n');
+            }
+            if (value.isConsumable != null) {
+                builder.append(record(REQUESTED, token, value)).append('\n');
+            }
+            if (value.finalizedAt > 0) {
+                builder.append(record(FINALIZED, token, value)).append('\n');
+            }
+        }
+
+        byte[] serialized = builder.toString().getBytes(StandardCharsets.UTF_8);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            stream.write(serialized);
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact purchase journal", e);
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace purchase journal");
+        }
+    }
+
+    private static final class Entry {
+        String originalJson;
+        String signature;
+        Boolean isConsumable;
+        long finalizedAt;
+        boolean isConsumed;
+        // System.nanoTime() of the last arrival or request in this process; not persisted.
+        long recordedAt = Long.MIN_VALUE;
+
+        Entry(String originalJson, String signature) {
+            this.originalJson = originalJson;
+            this.signature = signature;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.class101.iap.internal.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BillingMetrics {
+    public enum Metric {
+        CONNECTION_SETUP("connection.setup"),
+        CONNECTION_QUEUE_WAIT("connection.queueWait"),
+        QUERY_PRODUCT_DETAILS("billing.queryProductDetails"),
+        QUERY_PURCHASES("billing.queryPurchases"),
+        LAUNCH_BILLING_FLOW("billing.launchBillingFlow"),
+        CONSUME("billing.consume"),
+        ACKNOWLEDGE("billing.acknowledge"),
+        SERIALIZE_PRODUCTS("serialize.products"),
+        SERIALIZE_PURCHASES("serialize.purchases"),
+        BRIDGE_EMIT("bridge.emit"),
+        CALL_FETCH_PRODUCTS("call.fetchProducts"),
+        CALL_PURCHASE("call.purchase"),
+        CALL_FINALIZE("call.finalize"),
+        CALL_FLUSH("call.flush"),
+        CALL_FLUSH_CHANGES("call.flushChanges"),
+        CALL_EXPORT_CATALOG("call.exportCatalog");
+
+        public final String key;
+
+        Metric(String key) {
+            this.key = key;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Metric.values().length];
+    private final AtomicLong windowStartedAt = new AtomicLong(System.currentTimeMillis());
+
+    public BillingMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(@NonNull Metric metric, long nanos) {
+        histograms[metric.ordinal()].record(nanos, false);
+    }
+
+    public void record(@NonNull Metric metric, long nanos, boolean isError) {
+        histograms[metric.ordinal()].record(nanos, isError);
+    }
+
+    public void recordSince(@NonNull Metric metric, long startedAtNanos, boolean isError) {
+        histograms[metric.ordinal()].record(System.nanoTime() - startedAtNanos, isError);
+    }
+
+    public Snapshot snapshot(boolean reset) {
+        long now = System.currentTimeMillis();
+        long startedAt = reset ? windowStartedAt.getAndSet(now) : windowStartedAt.get();
+
+        Map<Metric, LatencyHistogram.Snapshot> snapshots = new EnumMap<>(Metric.class);
+        for (Metric metric : Metric.values()) {
+            snapshots.put(metric, histograms[metric.ordinal()].snapshot(reset));
+        }
+
+        return new Snapshot(now - startedAt, snapshots);
+    }
+
+    public static final class Snapshot {
+        public final long windowMillis;
+        public final Map<Metric, LatencyHistogram.Snapshot> histograms;
+
+        Snapshot(long windowMillis, Map<Metric, LatencyHistogram.Snapshot> histograms) {
+            this.windowMillis = windowMillis;
+            this.histograms = histograms;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net.class101.iap.internal.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring buffer of the most recent billing operations, for reconstructing what happened
+ * around a failure. Recording allocates nothing: each slot is a run of longs in one array,
+ * stamped with its sequence number once written, so a dump skips slots that are being
+ * overwritten instead of reading torn events.
+ */
+public class BillingTrace {
+    public enum Operation {
+        CONNECT("connect"),
+        CONNECTION_REJECTED("connection.rejected"),
+        QUERY_PRODUCT_DETAILS("billing.queryProductDetails"),
+        QUERY_PURCHASES("billing.queryPurchases"),
+        LAUNCH_BILLING_FLOW("billing.launchBillingFlow"),
+        CONSUME("billing.consume"),
+        ACKNOWLEDGE("billing.acknowledge"),
+        RETRY("billing.retry"),
+        PURCHASES_UPDATED("callback.purchasesUpdated"),
+        DELIVER_PRODUCTS("deliver.products"),
+        DELIVER_PURCHASES("deliver.purchases"),
+        DELIVER_ERROR("deliver.error"),
+        DELIVER_OTHER("deliver.other");
+
+        public final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Correlation id of events that no call started, e.g. reconnects and event deliveries.
+     */
+    public static final long NO_CORRELATION = 0;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final int SLOT_STAMP = 0;
+    private static final int SLOT_TIME = 1;
+    private static final int SLOT_CORRELATION = 2;
+    private static final int SLOT_OPERATION_AND_CODE = 3;
+    private static final int SLOT_DURATION = 4;
+    private static final int SLOT_SIZE = 5;
+    private static final long UNWRITTEN = -1;
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong nextCorrelationId = new AtomicLong(NO_CORRELATION);
+    private final long origin = System.nanoTime();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public BillingTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * SLOT_SIZE);
+
+        for (int i = 0; i < size; i++) {
+            slots.set(i * SLOT_SIZE + SLOT_STAMP, UNWRITTEN);
+        }
+    }
+
+    /**
+     * Returns an id that ties together the events of one call.
+     */
+    public long newCorrelationId() {
+        return nextCorrelationId.incrementAndGet();
+    }
+
+    public void record(@NonNull Operation operation, long correlationId, int responseCode, long durationNanos) {
+        long sequence = nextSequence.getAndIncrement();
+        int base = (int) (sequence & mask) * SLOT_SIZE;
+
+        slots.set(base + SLOT_STAMP, UNWRITTEN);
+        slots.set(base + SLOT_TIME, System.nanoTime() - origin);
+        slots.set(base + SLOT_CORRELATION, correlationId);
+        slots.set(base + SLOT_OPERATION_AND_CODE, ((long) operation.ordinal() << 32) | (responseCode & 0xffffffffL));
+        slots.set(base + SLOT_DURATION, durationNanos);
+        slots.set(base + SLOT_STAMP, sequence);
+    }
+
+    public void recordSince(@NonNull Operation operation, long correlationId, int responseCode, long startedAtNanos) {
+        record(operation, correlationId, responseCode, System.nanoTime() - startedAtNanos);
+    }
+
+    /**
+     * Exports the buffered events, oldest first, as compact JSON. Times and durations are in
+     * microseconds; {@code t} is measured from when the trace was created, like {@code now}.
+     *
+     * <pre>{"now":52000,"dropped":0,"operations":["connect",...],"events":[[t,operation,id,code,duration],...]}</pre>
+     */
+    public String dump() {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - (mask + 1));
+
+        StringBuilder json = new StringBuilder(64 + (int) (end - start) * 32);
+        json.append("{\"now\":").append(toMicros(System.nanoTime() - origin))
+                .append(",\"dropped\":").append(start)
+                .append(",\"operations\":[");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(OPERATIONS[i].key).append('"');
+        }
+
+        json.append("],\"events\":[");
+        boolean isFirst = true;
+        for (long sequence = start; sequence < end; sequence++) {
+            int base = (int) (sequence & mask) * SLOT_SIZE;
+            if (slots.get(base + SLOT_STAMP) != sequence) {
+                continue;
+            }
+
+            long time = slots.get(base + SLOT_TIME);
+            long correlationId = slots.get(base + SLOT_CORRELATION);
+            long operationAndCode = slots.get(base + SLOT_OPERATION_AND_CODE);
+            long duration = slots.get(base + SLOT_DURATION);
+
+            // Overwritten while being read.
+            if (slots.get(base + SLOT_STAMP) != sequence) {
+                continue;
+            }
+
+            if (!isFirst) {
+                json.append(',');
+            }
+            isFirst = false;
+            json.append('[').append(toMicros(time))
+                    .append(',').append(operationAndCode >>> 32)
+                    .append(',').append(correlationId)
+                    .append(',').append((int) operationAndCode)
+                    .append(',').append(toMicros(duration))
+                    .append(']');
+        }
+        json.append("]}");
+
+        return json.toString();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,101 @@
+package net.class101.iap.internal.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets, from 64us up to about 67s.
+ * Percentiles are reported as the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+    private static final int MIN_SHIFT = 6;
+    private static final int BUCKET_COUNT = 21;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos, boolean isError) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+
+        buckets.incrementAndGet(bucketOf(micros));
+        sumMicros.addAndGet(micros);
+        if (isError) {
+            errorCount.incrementAndGet();
+        }
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public Snapshot snapshot(boolean reset) {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = reset ? buckets.getAndSet(i, 0) : buckets.get(i);
+            count += counts[i];
+        }
+
+        long errors = reset ? errorCount.getAndSet(0) : errorCount.get();
+        long sum = reset ? sumMicros.getAndSet(0) : sumMicros.get();
+        long max = reset ? maxMicros.getAndSet(0) : maxMicros.get();
+
+        return new Snapshot(
+                count,
+                errors,
+                count > 0 ? sum / 1000.0 / count : 0,
+                percentile(counts, count, 0.50),
+                percentile(counts, count, 0.90),
+                percentile(counts, count, 0.99),
+                max / 1000.0
+        );
+    }
+
+    private static int bucketOf(long micros) {
+        int bits = 64 - Long.numberOfLeadingZeros(micros >> MIN_SHIFT);
+        return Math.min(bits, BUCKET_COUNT - 1);
+    }
+
+    private static double percentile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (1L << (MIN_SHIFT + i)) / 1000.0;
+            }
+        }
+
+        return (1L << (MIN_SHIFT + counts.length - 1)) / 1000.0;
+    }
+
+    public static final class Snapshot {
+        public final long count;
+        public final long errorCount;
+        public final double meanMillis;
+        public final double p50Millis;
+        public final double p90Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+
+        Snapshot(long count, long errorCount, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+            this.count = count;
+            this.errorCount = errorCount;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+    }
+}
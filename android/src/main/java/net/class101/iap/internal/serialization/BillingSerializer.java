@@ -0,0 +1,258 @@
+package net.class101.iap.internal.serialization;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.Purchase;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import net.class101.iap.internal.catalog.IndexedProduct;
+import net.class101.iap.internal.catalog.ProductLookup;
+import net.class101.iap.internal.entitlements.EntitlementTable;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Builds the product and purchase payloads sent to JS. Maps and arrays come from the given
+ * factories, so the same code runs against native collections on device and
+ * {@code JavaOnlyMap}/{@code JavaOnlyArray} on a plain JVM.
+ */
+public class BillingSerializer {
+    private final Supplier<WritableMap> mapFactory;
+    private final Supplier<WritableArray> arrayFactory;
+
+    public BillingSerializer(@NonNull Supplier<WritableMap> mapFactory, @NonNull Supplier<WritableArray> arrayFactory) {
+        this.mapFactory = mapFactory;
+        this.arrayFactory = arrayFactory;
+    }
+
+    public WritableMap createMap() {
+        return mapFactory.get();
+    }
+
+    public WritableArray createArray() {
+        return arrayFactory.get();
+    }
+
+    /**
+     * Serializes the requested products, in request order, that are present in {@code index}.
+     */
+    public WritableArray products(@NonNull ReadableArray products, @NonNull ProductLookup index) {
+        WritableArray items = arrayFactory.get();
+
+        for (int i = 0; i < products.size(); i++) {
+            ReadableMap product = products.getMap(i);
+
+            String productId = product.getString("id");
+            String productType = product.getString("type");
+            String planId = product.getString("planId");
+            String offerId = product.getString("offerId");
+
+            if (productId == null || productType == null) {
+                continue;
+            }
+
+            if (!productType.equals(BillingClient.ProductType.SUBS) && !productType.equals(BillingClient.ProductType.INAPP)) {
+                continue;
+            }
+
+            IndexedProduct indexedProduct = index.get(productId);
+            if (indexedProduct == null) {
+                continue;
+            }
+
+            WritableMap item = product(indexedProduct, productType, planId, offerId);
+            if (item != null) {
+                items.pushMap(item);
+            }
+        }
+
+        return items;
+    }
+
+    @Nullable
+    public WritableMap product(@NonNull IndexedProduct indexedProduct, @NonNull String productType, @Nullable String planId, @Nullable String offerId) {
+        ProductDetails productDetails = indexedProduct.details;
+
+        if (productType.equals(BillingClient.ProductType.INAPP)) {
+            WritableMap item = mapFactory.get();
+            item.putString("productId", productDetails.getProductId());
+            item.putString("offerId", offerId);
+            item.putString("title", productDetails.getTitle());
+            item.putString("description", productDetails.getDescription());
+
+            ProductDetails.OneTimePurchaseOfferDetails offerDetails = productDetails.getOneTimePurchaseOfferDetails();
+            if (offerDetails != null) {
+                item.putString("price", offerDetails.getFormattedPrice());
+                item.putString("currency", offerDetails.getPriceCurrencyCode());
+            }
+
+            return item;
+        }
+
+        ProductDetails.SubscriptionOfferDetails offerDetails = indexedProduct.findOffer(planId, offerId);
+        if (offerDetails == null) {
+            return null;
+        }
+
+        ProductDetails.PricingPhase pricingPhase = offerDetails.getPricingPhases().getPricingPhaseList().get(0);
+
+        WritableMap item = mapFactory.get();
+        item.putString("productId", productDetails.getProductId());
+        item.putString("planId", planId);
+        item.putString("offerId", offerId);
+        item.putString("title", productDetails.getTitle());
+        item.putString("description", productDetails.getDescription());
+        item.putString("price", pricingPhase.getFormattedPrice());
+        item.putString("currency", pricingPhase.getPriceCurrencyCode());
+
+        return item;
+    }
+
+    /**
+     * Serializes every base plan and offer of the given products with their full pricing phases.
+     * Offers are nested under their base plan so the plan id is not repeated per offer.
+     */
+    public WritableArray catalog(@NonNull List<ProductDetails> productDetailsList) {
+        WritableArray items = arrayFactory.get();
+
+        for (ProductDetails productDetails : productDetailsList) {
+            WritableMap item = mapFactory.get();
+            item.putString("productId", productDetails.getProductId());
+            item.putString("type", productDetails.getProductType());
+            item.putString("title", productDetails.getTitle());
+            item.putString("description", productDetails.getDescription());
+
+            ProductDetails.OneTimePurchaseOfferDetails oneTimeOffer = productDetails.getOneTimePurchaseOfferDetails();
+            if (oneTimeOffer != null) {
+                WritableMap offer = mapFactory.get();
+                offer.putString("price", oneTimeOffer.getFormattedPrice());
+                offer.putDouble("priceMicros", oneTimeOffer.getPriceAmountMicros());
+                offer.putString("currency", oneTimeOffer.getPriceCurrencyCode());
+                item.putMap("oneTimeOffer", offer);
+            }
+
+            List<ProductDetails.SubscriptionOfferDetails> offerDetailsList = productDetails.getSubscriptionOfferDetails();
+            if (offerDetailsList != null) {
+                item.putArray("plans", plans(offerDetailsList));
+            }
+
+            items.pushMap(item);
+        }
+
+        return items;
+    }
+
+    private WritableArray plans(List<ProductDetails.SubscriptionOfferDetails> offerDetailsList) {
+        WritableArray plans = arrayFactory.get();
+        Map<String, WritableArray> offersByPlanId = new LinkedHashMap<>();
+
+        for (ProductDetails.SubscriptionOfferDetails offerDetails : offerDetailsList) {
+            WritableArray offers = offersByPlanId.get(offerDetails.getBasePlanId());
+            if (offers == null) {
+                offers = arrayFactory.get();
+                offersByPlanId.put(offerDetails.getBasePlanId(), offers);
+            }
+
+            WritableArray tags = arrayFactory.get();
+            for (String tag : offerDetails.getOfferTags()) {
+                tags.pushString(tag);
+            }
+
+            WritableArray phases = arrayFactory.get();
+            for (ProductDetails.PricingPhase pricingPhase : offerDetails.getPricingPhases().getPricingPhaseList()) {
+                WritableMap phase = mapFactory.get();
+                phase.putString("price", pricingPhase.getFormattedPrice());
+                phase.putDouble("priceMicros", pricingPhase.getPriceAmountMicros());
+                phase.putString("currency", pricingPhase.getPriceCurrencyCode());
+                phase.putString("period", pricingPhase.getBillingPeriod());
+                phase.putInt("cycleCount", pricingPhase.getBillingCycleCount());
+                phase.putInt("recurrenceMode", pricingPhase.getRecurrenceMode());
+                phases.pushMap(phase);
+            }
+
+            WritableMap offer = mapFactory.get();
+            offer.putString("offerId", offerDetails.getOfferId());
+            offer.putString("offerToken", offerDetails.getOfferToken());
+            offer.putArray("tags", tags);
+            offer.putArray("pricingPhases", phases);
+            offers.pushMap(offer);
+        }
+
+        for (Map.Entry<String, WritableArray> entry : offersByPlanId.entrySet()) {
+            WritableMap plan = mapFactory.get();
+            plan.putString("planId", entry.getKey());
+            plan.putArray("offers", entry.getValue());
+            plans.pushMap(plan);
+        }
+
+        return plans;
+    }
+
+    public WritableArray entitlements(@NonNull Collection<EntitlementTable.Entitlement> entitlements) {
+        WritableArray items = arrayFactory.get();
+
+        for (EntitlementTable.Entitlement entitlement : entitlements) {
+            WritableMap item = mapFactory.get();
+            item.putString("productId", entitlement.productId);
+            item.putString("purchaseToken", entitlement.purchaseToken);
+            item.putDouble("purchaseTime", entitlement.purchaseTime);
+            item.putBoolean("isAutoRenewing", entitlement.isAutoRenewing);
+            item.putBoolean("isAcknowledged", entitlement.isAcknowledged);
+            items.pushMap(item);
+        }
+
+        return items;
+    }
+
+    public WritableArray purchases(@NonNull List<Purchase> purchases, boolean isUnacknowledgedOnly) {
+        return purchases(purchases, isUnacknowledgedOnly, null);
+    }
+
+    /**
+     * Serializes purchases. When {@code verifiedTokens} is given, each item gets an
+     * {@code isVerified} flag telling whether its token is in the set.
+     */
+    public WritableArray purchases(@NonNull List<Purchase> purchases, boolean isUnacknowledgedOnly, @Nullable Set<String> verifiedTokens) {
+        WritableArray items = arrayFactory.get();
+
+        for (Purchase purchase : purchases) {
+            if (isUnacknowledgedOnly && purchase.isAcknowledged()) {
+                continue;
+            }
+
+            WritableMap item = purchase(purchase);
+            if (verifiedTokens != null) {
+                item.putBoolean("isVerified", verifiedTokens.contains(purchase.getPurchaseToken()));
+            }
+            items.pushMap(item);
+        }
+
+        return items;
+    }
+
+    public WritableMap purchase(@NonNull Purchase purchase) {
+        WritableMap item = mapFactory.get();
+        WritableArray productIds = arrayFactory.get();
+        for (String sku : purchase.getProducts()) {
+            productIds.pushString(sku);
+        }
+        item.putArray("productIds", productIds);
+        item.putString("transactionId", purchase.getOrderId());
+        item.putString("transactionDate", String.valueOf(purchase.getPurchaseTime()));
+        item.putString("receipt", purchase.getOriginalJson());
+        item.putString("purchaseToken", purchase.getPurchaseToken());
+
+        return item;
+    }
+}
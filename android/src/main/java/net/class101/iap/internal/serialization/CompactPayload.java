@@ -0,0 +1,142 @@
+package net.class101.iap.internal.serialization;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes a list of flat items into one columnar JSON string, so it crosses the bridge as a
+ * single value instead of a map per item:
+ *
+ * <pre>{"length":2,"strings":["a","KRW"],"columns":{"productId":[0,0],"currency":[1,null]}}</pre>
+ *
+ * Strings are stored once in the string table and referenced by index, so repeated values like
+ * currency codes and titles are sent once. Booleans are stored as is, missing values as null and
+ * string arrays as arrays of indices.
+ */
+public final class CompactPayload {
+    private CompactPayload() {
+    }
+
+    public static String encode(@NonNull ReadableArray items) {
+        return encode(items, Collections.emptySet());
+    }
+
+    public static String encode(@NonNull ReadableArray items, @NonNull Set<String> excludedKeys) {
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        Map<String, Column> columns = new LinkedHashMap<>();
+        int length = items.size();
+
+        for (int row = 0; row < length; row++) {
+            ReadableMap item = items.getMap(row);
+
+            ReadableMapKeySetIterator iterator = item.keySetIterator();
+            while (iterator.hasNextKey()) {
+                String key = iterator.nextKey();
+                if (excludedKeys.contains(key)) {
+                    continue;
+                }
+
+                Column column = columns.get(key);
+                if (column == null) {
+                    column = new Column();
+                    columns.put(key, column);
+                }
+                // Rows without this key, including those before its first use, hold null.
+                column.padTo(row);
+                StringBuilder values = column.next();
+
+                switch (item.getType(key)) {
+                    case Null:
+                        values.append("null");
+                        break;
+                    case Boolean:
+                        values.append(item.getBoolean(key));
+                        break;
+                    case String:
+                        values.append(intern(item.getString(key), stringIndexes, strings));
+                        break;
+                    case Array:
+                        ReadableArray array = item.getArray(key);
+                        values.append('[');
+                        for (int i = 0; i < array.size(); i++) {
+                            if (i > 0) {
+                                values.append(',');
+                            }
+                            values.append(intern(array.getString(i), stringIndexes, strings));
+                        }
+                        values.append(']');
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported compact value for " + key + ": " + item.getType(key));
+                }
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"length\":").append(length).append(",\"strings\":[");
+        for (int i = 0; i < strings.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(JSONObject.quote(strings.get(i)));
+        }
+
+        json.append("],\"columns\":{");
+        boolean isFirst = true;
+        for (Map.Entry<String, Column> entry : columns.entrySet()) {
+            Column column = entry.getValue();
+            column.padTo(length);
+
+            if (!isFirst) {
+                json.append(',');
+            }
+            isFirst = false;
+            json.append(JSONObject.quote(entry.getKey())).append(":[").append(column.values).append(']');
+        }
+        json.append("}}");
+
+        return json.toString();
+    }
+
+    private static int intern(String value, Map<String, Integer> stringIndexes, List<String> strings) {
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            stringIndexes.put(value, index);
+            strings.add(value);
+        }
+        return index;
+    }
+
+    private static final class Column {
+        final StringBuilder values = new StringBuilder();
+        int size;
+
+        void padTo(int rows) {
+            while (size < rows) {
+                next().append("null");
+            }
+        }
+
+        StringBuilder next() {
+            if (size++ > 0) {
+                values.append(',');
+            }
+            return values;
+        }
+    }
+}
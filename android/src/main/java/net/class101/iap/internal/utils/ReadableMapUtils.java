@@ -1,11 +1,46 @@
 package net.class101.iap.internal.utils;
 
-import com.facebook.react.bridge.Dynamic;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
 
 public class ReadableMapUtils {
+    private static final long NULL_HASH = 0x9E3779B97F4A7C15L;
+    private static final long TRUE_HASH = 0x632BE59BD9B4E019L;
+    private static final long FALSE_HASH = 0x85157AF5D3A0B3C5L;
+    private static final long MAP_SEED = 0x27D4EB2F165667C5L;
+    private static final long ARRAY_SEED = 0x165667B19E3779F9L;
+
+    public static int getInt(ReadableMap map, String key, int fallback) {
+        if (map == null || !map.hasKey(key) || map.isNull(key)) {
+            return fallback;
+        }
+        return map.getInt(key);
+    }
+
+    /**
+     * Hash of the map's contents that does not depend on key order, so equal configs built in a
+     * different order share a fingerprint. Values are read through their typed getters.
+     */
+    public static long fingerprint(ReadableMap map) {
+        if (map == null) {
+            return NULL_HASH;
+        }
+
+        long hash = MAP_SEED;
+        int count = 0;
+
+        ReadableMapKeySetIterator iterator = map.keySetIterator();
+        while (iterator.hasNextKey()) {
+            String key = iterator.nextKey();
+            hash += mix(key.hashCode() * 0x9E3779B97F4A7C15L ^ valueFingerprint(map, key));
+            count++;
+        }
+
+        return mix(hash + count);
+    }
+
     public static boolean deepEquals(ReadableMap map1, ReadableMap map2) {
         if (map1 == null && map2 == null) {
             return true;
@@ -14,18 +49,21 @@ public class ReadableMapUtils {
             return false;
         }
 
+        int count = 0;
+
         ReadableMapKeySetIterator iterator = map1.keySetIterator();
         while (iterator.hasNextKey()) {
             String key = iterator.nextKey();
-            if (!map2.hasKey(key) || !deepEquals(map1.getDynamic(key), map2.getDynamic(key))) {
+            if (!map2.hasKey(key) || !valueEquals(map1, map2, key)) {
                 return false;
             }
+            count++;
         }
 
         iterator = map2.keySetIterator();
         while (iterator.hasNextKey()) {
-            String key = iterator.nextKey();
-            if (!map1.hasKey(key)) {
+            iterator.nextKey();
+            if (--count < 0) {
                 return false;
             }
         }
@@ -33,21 +71,88 @@ public class ReadableMapUtils {
         return true;
     }
 
-    private static boolean deepEquals(Dynamic value1, Dynamic value2) {
-        if (value1.getType() != value2.getType()) return false;
-        switch (value1.getType()) {
+    private static long valueFingerprint(ReadableMap map, String key) {
+        switch (map.getType(key)) {
+            case Null:
+                return NULL_HASH;
+            case Boolean:
+                return map.getBoolean(key) ? TRUE_HASH : FALSE_HASH;
+            case Number:
+                return numberFingerprint(map.getDouble(key));
+            case String:
+                return map.getString(key).hashCode();
+            case Map:
+                return fingerprint(map.getMap(key));
+            case Array:
+                return fingerprint(map.getArray(key));
+            default:
+                return 0;
+        }
+    }
+
+    private static long fingerprint(ReadableArray array) {
+        long hash = ARRAY_SEED;
+
+        for (int i = 0; i < array.size(); i++) {
+            long value;
+            switch (array.getType(i)) {
+                case Null:
+                    value = NULL_HASH;
+                    break;
+                case Boolean:
+                    value = array.getBoolean(i) ? TRUE_HASH : FALSE_HASH;
+                    break;
+                case Number:
+                    value = numberFingerprint(array.getDouble(i));
+                    break;
+                case String:
+                    value = array.getString(i).hashCode();
+                    break;
+                case Map:
+                    value = fingerprint(array.getMap(i));
+                    break;
+                case Array:
+                    value = fingerprint(array.getArray(i));
+                    break;
+                default:
+                    value = 0;
+            }
+            hash = mix(hash * 31 + value);
+        }
+
+        return mix(hash + array.size());
+    }
+
+    private static long numberFingerprint(double value) {
+        // 0.0 == -0.0, so both must hash alike.
+        return value == 0 ? 0 : Double.doubleToLongBits(value);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static boolean valueEquals(ReadableMap map1, ReadableMap map2, String key) {
+        ReadableType type = map1.getType(key);
+        if (type != map2.getType(key)) return false;
+        switch (type) {
             case Null:
                 return true;
             case Boolean:
-                return value1.asBoolean() == value2.asBoolean();
+                return map1.getBoolean(key) == map2.getBoolean(key);
             case Number:
-                return value1.asDouble() == value2.asDouble();
+                return map1.getDouble(key) == map2.getDouble(key);
             case String:
-                return value1.asString().equals(value2.asString());
+                return map1.getString(key).equals(map2.getString(key));
             case Map:
-                return deepEquals(value1.asMap(), value2.asMap());
+                return deepEquals(map1.getMap(key), map2.getMap(key));
             case Array:
-                return deepEquals(value1.asArray(), value2.asArray());
+                return deepEquals(map1.getArray(key), map2.getArray(key));
             default:
                 return false;
         }
@@ -56,7 +161,29 @@ public class ReadableMapUtils {
     private static boolean deepEquals(ReadableArray array1, ReadableArray array2) {
         if (array1.size() != array2.size()) return false;
         for (int i = 0; i < array1.size(); i++) {
-            if (!deepEquals(array1.getDynamic(i), array2.getDynamic(i))) return false;
+            ReadableType type = array1.getType(i);
+            if (type != array2.getType(i)) return false;
+            switch (type) {
+                case Null:
+                    break;
+                case Boolean:
+                    if (array1.getBoolean(i) != array2.getBoolean(i)) return false;
+                    break;
+                case Number:
+                    if (array1.getDouble(i) != array2.getDouble(i)) return false;
+                    break;
+                case String:
+                    if (!array1.getString(i).equals(array2.getString(i))) return false;
+                    break;
+                case Map:
+                    if (!deepEquals(array1.getMap(i), array2.getMap(i))) return false;
+                    break;
+                case Array:
+                    if (!deepEquals(array1.getArray(i), array2.getArray(i))) return false;
+                    break;
+                default:
+                    return false;
+            }
         }
         return true;
     }
@@ -0,0 +1,48 @@
+package net.class101.iap.internal.utils;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resizable pool that assembles results off the billing callback thread. With a single thread
+ * (the default) tasks run in submission order.
+ */
+public class WorkerExecutor implements Executor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+
+    public WorkerExecutor(int threadCount) {
+        AtomicInteger index = new AtomicInteger();
+        int size = Math.max(1, threadCount);
+
+        this.executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "rniap-worker-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void setThreadCount(int threadCount) {
+        int size = Math.max(1, threadCount);
+
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+        executor.execute(runnable);
+    }
+}
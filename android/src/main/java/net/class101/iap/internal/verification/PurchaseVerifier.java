@@ -0,0 +1,128 @@
+package net.class101.iap.internal.verification;
+
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.Purchase;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Checks purchase signatures against the app's Google Play license key (the base64 RSA public
+ * key from the Play Console), without a server round trip. The key is parsed once per value and
+ * verified purchases are remembered, so a purchase seen again is not verified twice.
+ */
+public class PurchaseVerifier {
+    private static final String TAG = "PurchaseVerifier";
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final int MAX_CACHED_RESULTS = 1024;
+
+    // Signature to the exact data it was verified against. The data is compared in full so a
+    // valid signature reused with altered data is checked again, and fails.
+    private final Map<String, String> verified = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_RESULTS;
+        }
+    };
+
+    @Nullable
+    private String encodedKey;
+    @Nullable
+    private PublicKey publicKey;
+
+    /**
+     * Replaces the key. An invalid key leaves verification unavailable until a valid one is set.
+     */
+    public synchronized void setPublicKey(@Nullable String encodedKey) {
+        if (Objects.equals(this.encodedKey, encodedKey)) {
+            return;
+        }
+
+        this.encodedKey = encodedKey;
+        this.publicKey = null;
+        verified.clear();
+
+        if (encodedKey == null || encodedKey.isEmpty()) {
+            return;
+        }
+
+        try {
+            byte[] decoded = Base64.decode(encodedKey, Base64.DEFAULT);
+            publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(decoded));
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            Log.w(TAG, "Invalid Google Play public key", e);
+        }
+    }
+
+    public synchronized boolean isAvailable() {
+        return publicKey != null;
+    }
+
+    /**
+     * Returns the tokens of the purchases whose signature matches. All purchases are checked with
+     * one {@link Signature} instance.
+     */
+    public synchronized Set<String> verify(@NonNull List<Purchase> purchases) {
+        Set<String> verifiedTokens = new HashSet<>();
+        if (publicKey == null) {
+            return verifiedTokens;
+        }
+
+        Signature verifier = null;
+
+        for (Purchase purchase : purchases) {
+            String signature = purchase.getSignature();
+            if (signature == null || signature.isEmpty()) {
+                continue;
+            }
+
+            String originalJson = purchase.getOriginalJson();
+            if (!originalJson.equals(verified.get(signature))) {
+                try {
+                    if (verifier == null) {
+                        verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+                    }
+                    if (!verify(verifier, originalJson, signature)) {
+                        continue;
+                    }
+                } catch (GeneralSecurityException e) {
+                    Log.w(TAG, "Failed to verify purchase signature", e);
+                    continue;
+                }
+                verified.put(signature, originalJson);
+            }
+
+            verifiedTokens.add(purchase.getPurchaseToken());
+        }
+
+        return verifiedTokens;
+    }
+
+    private boolean verify(Signature verifier, String signedData, String signature) throws GeneralSecurityException {
+        byte[] signatureBytes;
+        try {
+            signatureBytes = Base64.decode(signature, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        verifier.initVerify(publicKey);
+        verifier.update(signedData.getBytes(StandardCharsets.UTF_8));
+        return verifier.verify(signatureBytes);
+    }
+}
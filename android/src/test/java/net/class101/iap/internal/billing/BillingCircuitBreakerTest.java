@@ -0,0 +1,115 @@
+package net.class101.iap.internal.billing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.billingclient.api.BillingClient;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class BillingCircuitBreakerTest {
+    private static final int TRANSIENT = BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE;
+
+    private long now = 1_000;
+    private final BillingCircuitBreaker breaker = new BillingCircuitBreaker(() -> now);
+
+    @Test
+    public void opensAfterFiveTransientFailuresInARow() {
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(TRANSIENT);
+        }
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onResult(TRANSIENT);
+
+        assertFalse(breaker.tryAcquire());
+        assertEquals(BillingCircuitBreaker.State.OPEN, breaker.getStats().state);
+        assertEquals(10_000, breaker.getStats().retryAfterMillis);
+    }
+
+    @Test
+    public void nonTransientResultResetsTheFailureCount() {
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(TRANSIENT);
+        }
+        breaker.onResult(BillingClient.BillingResponseCode.ITEM_NOT_OWNED);
+        breaker.onResult(TRANSIENT);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(1, breaker.getStats().consecutiveFailures);
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterTheCooldown() {
+        trip();
+        advanceMillis(10_000);
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(BillingCircuitBreaker.State.HALF_OPEN, breaker.getStats().state);
+
+        breaker.onResult(BillingClient.BillingResponseCode.OK);
+
+        assertEquals(BillingCircuitBreaker.State.CLOSED, breaker.getStats().state);
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void failedProbeReopensWithADoubledCooldown() {
+        trip();
+        advanceMillis(10_000);
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onResult(TRANSIENT);
+
+        assertEquals(BillingCircuitBreaker.State.OPEN, breaker.getStats().state);
+        assertEquals(20_000, breaker.getStats().retryAfterMillis);
+    }
+
+    @Test
+    public void probeWithoutAnAnswerExpires() {
+        trip();
+        advanceMillis(10_000);
+        assertTrue(breaker.tryAcquire());
+
+        advanceMillis(30_000);
+
+        assertEquals(BillingCircuitBreaker.State.OPEN, breaker.getStats().state);
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void inconclusiveProbeWaitsAnotherCooldown() {
+        trip();
+        advanceMillis(10_000);
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onInconclusive();
+
+        assertEquals(BillingCircuitBreaker.State.OPEN, breaker.getStats().state);
+        assertEquals(10_000, breaker.getStats().retryAfterMillis);
+    }
+
+    @Test
+    public void inconclusiveResultsDoNotOpenTheBreaker() {
+        for (int i = 0; i < 10; i++) {
+            breaker.onInconclusive();
+        }
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(0, breaker.getStats().consecutiveFailures);
+    }
+
+    private void trip() {
+        for (int i = 0; i < 5; i++) {
+            breaker.onResult(TRANSIENT);
+        }
+    }
+
+    private void advanceMillis(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
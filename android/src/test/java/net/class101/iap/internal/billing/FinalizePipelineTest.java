@@ -0,0 +1,185 @@
+package net.class101.iap.internal.billing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+public class FinalizePipelineTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test
+    public void finalizesEachDistinctTokenOnce() throws InterruptedException {
+        List<String> submitted = Collections.synchronizedList(new ArrayList<>());
+
+        List<FinalizePipeline.Result> results = run(
+                Arrays.asList(request("a"), request("b"), request("a")),
+                (token, isConsumable, done) -> {
+                    submitted.add(token);
+                    done.accept(result(BillingClient.BillingResponseCode.OK, "done"));
+                },
+                4,
+                3
+        );
+
+        assertEquals(Arrays.asList("a", "b"), submitted);
+        assertEquals(2, results.size());
+        assertEquals("a", results.get(0).purchaseToken);
+        assertEquals("b", results.get(1).purchaseToken);
+        assertTrue(results.get(0).isSuccess());
+    }
+
+    @Test
+    public void keepsAtMostConcurrencyCallsInFlight() throws InterruptedException {
+        List<Consumer<BillingResult>> inFlight = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<List<FinalizePipeline.Result>> results = new AtomicReference<>();
+
+        FinalizePipeline.run(
+                Arrays.asList(request("a"), request("b"), request("c"), request("d"), request("e")),
+                (token, isConsumable, done) -> {
+                    inFlight.add(done);
+                    maxInFlight.accumulateAndGet(inFlight.size(), Math::max);
+                },
+                2,
+                0,
+                completed -> {
+                    results.set(completed);
+                    finished.countDown();
+                }
+        );
+
+        while (finished.getCount() > 0) {
+            Consumer<BillingResult> done;
+            synchronized (inFlight) {
+                assertFalse(inFlight.isEmpty());
+                done = inFlight.remove(0);
+            }
+            done.accept(result(BillingClient.BillingResponseCode.OK, "done"));
+        }
+
+        assertEquals(2, maxInFlight.get());
+        assertEquals(5, results.get().size());
+    }
+
+    @Test
+    public void retriesTransientFailuresUpToMaxRetries() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+
+        List<FinalizePipeline.Result> results = run(
+                Collections.singletonList(request("a")),
+                (token, isConsumable, done) -> {
+                    attempts.incrementAndGet();
+                    done.accept(result(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE, "unavailable"));
+                },
+                1,
+                2
+        );
+
+        assertEquals(3, attempts.get());
+        assertEquals(3, results.get(0).attempts);
+        assertEquals(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE, results.get(0).responseCode);
+    }
+
+    @Test
+    public void succeedsWhenARetrySucceeds() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+
+        List<FinalizePipeline.Result> results = run(
+                Collections.singletonList(request("a")),
+                (token, isConsumable, done) -> done.accept(attempts.incrementAndGet() == 1
+                        ? result(BillingClient.BillingResponseCode.NETWORK_ERROR, "offline")
+                        : result(BillingClient.BillingResponseCode.OK, "done")),
+                1,
+                3
+        );
+
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(2, results.get(0).attempts);
+    }
+
+    @Test
+    public void doesNotRetryNonTransientFailures() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+
+        List<FinalizePipeline.Result> results = run(
+                Collections.singletonList(request("a")),
+                (token, isConsumable, done) -> {
+                    attempts.incrementAndGet();
+                    done.accept(result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED, "not owned"));
+                },
+                1,
+                3
+        );
+
+        assertEquals(1, attempts.get());
+        assertFalse(results.get(0).isSuccess());
+    }
+
+    @Test
+    public void doesNotRetryCallsRejectedByTheCircuitBreaker() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+
+        run(
+                Collections.singletonList(request("a")),
+                (token, isConsumable, done) -> {
+                    attempts.incrementAndGet();
+                    done.accept(result(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE, BillingRetryPolicy.CIRCUIT_OPEN_MESSAGE));
+                },
+                1,
+                3
+        );
+
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void completesAnEmptyBatchRightAway() throws InterruptedException {
+        List<FinalizePipeline.Result> results = run(
+                Collections.emptyList(),
+                (token, isConsumable, done) -> {
+                    throw new AssertionError("Nothing to finalize");
+                },
+                4,
+                3
+        );
+
+        assertTrue(results.isEmpty());
+    }
+
+    private static List<FinalizePipeline.Result> run(List<FinalizePipeline.Request> requests, FinalizePipeline.Finalizer finalizer, int concurrency, int maxRetries) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<List<FinalizePipeline.Result>> results = new AtomicReference<>();
+
+        FinalizePipeline.run(requests, finalizer, concurrency, maxRetries, completed -> {
+            results.set(completed);
+            finished.countDown();
+        });
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return results.get();
+    }
+
+    private static FinalizePipeline.Request request(String token) {
+        return new FinalizePipeline.Request(token, true);
+    }
+
+    private static BillingResult result(int responseCode, String debugMessage) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).setDebugMessage(debugMessage).build();
+    }
+}
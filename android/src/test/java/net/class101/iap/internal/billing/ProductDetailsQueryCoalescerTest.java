@@ -0,0 +1,197 @@
+package net.class101.iap.internal.billing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+
+import net.class101.iap.fake.FakeBillingBackend;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ProductDetailsQueryCoalescerTest {
+    private static final long WINDOW_MILLIS = 20;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final List<List<ProductKey>> fetches = Collections.synchronizedList(new ArrayList<>());
+    private FakeBillingBackend backend;
+
+    @After
+    public void tearDown() {
+        if (backend != null) {
+            backend.shutdown();
+        }
+    }
+
+    @Test
+    public void mergesQueriesWithinTheWindowIntoOneFetch() throws InterruptedException {
+        ProductDetailsQueryCoalescer coalescer = coalescer(FakeBillingBackend.newBuilder(), 20);
+
+        Response first = query(coalescer, "a", "b");
+        Response second = query(coalescer, "b", "c");
+
+        assertEquals(Arrays.asList("a", "b"), first.await());
+        assertEquals(Arrays.asList("b", "c"), second.await());
+        assertEquals(1, fetches.size());
+        assertEquals(keys("a", "b", "c"), fetches.get(0));
+    }
+
+    @Test
+    public void splitsLargeQueriesIntoBoundedChunks() throws InterruptedException {
+        ProductDetailsQueryCoalescer coalescer = coalescer(FakeBillingBackend.newBuilder(), 2);
+
+        Response response = query(coalescer, "a", "b", "c", "d", "e");
+
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), response.await());
+        assertEquals(3, fetches.size());
+        for (List<ProductKey> fetch : fetches) {
+            assertTrue(fetch.size() <= 2);
+        }
+    }
+
+    @Test
+    public void fetchesEachProductTypeSeparately() throws InterruptedException {
+        ProductDetailsQueryCoalescer coalescer = coalescer(FakeBillingBackend.newBuilder(), 20);
+
+        List<ProductKey> mixed = keys("a", "b");
+        mixed.add(new ProductKey("s", BillingClient.ProductType.SUBS));
+        Response response = new Response();
+        coalescer.query(mixed, response::onResponse);
+
+        assertEquals(Arrays.asList("a", "b", "s"), response.await());
+        assertEquals(2, fetches.size());
+        for (List<ProductKey> fetch : fetches) {
+            for (ProductKey key : fetch) {
+                assertEquals(fetch.get(0).productType, key.productType);
+            }
+        }
+    }
+
+    @Test
+    public void joinsKeysThatAreAlreadyInFlight() throws InterruptedException {
+        ProductDetailsQueryCoalescer coalescer = coalescer(
+                FakeBillingBackend.newBuilder().setLatency(FakeBillingBackend.Operation.QUERY_PRODUCT_DETAILS, 200, 200),
+                20
+        );
+
+        Response first = query(coalescer, "a");
+        Thread.sleep(WINDOW_MILLIS * 5);
+        Response second = query(coalescer, "a", "b");
+
+        assertEquals(Collections.singletonList("a"), first.await());
+        assertEquals(Arrays.asList("a", "b"), second.await());
+        assertEquals(2, fetches.size());
+        assertEquals(keys("b"), fetches.get(1));
+    }
+
+    @Test
+    public void failedFetchFailsEveryCallerWaitingOnIt() throws InterruptedException {
+        ProductDetailsQueryCoalescer coalescer = coalescer(
+                FakeBillingBackend.newBuilder().setErrorRate(FakeBillingBackend.Operation.QUERY_PRODUCT_DETAILS, 1, BillingClient.BillingResponseCode.ERROR),
+                20
+        );
+
+        Response first = query(coalescer, "a");
+        Response second = query(coalescer, "a", "b");
+
+        assertEquals(Collections.emptyList(), first.await());
+        assertEquals(Collections.emptyList(), second.await());
+        assertEquals(BillingClient.BillingResponseCode.ERROR, first.responseCode);
+        assertEquals(BillingClient.BillingResponseCode.ERROR, second.responseCode);
+    }
+
+    @Test
+    public void fetcherThatThrowsFailsItsCallersAndReleasesTheKeys() throws InterruptedException {
+        // Connects the backend; the coalescer under test uses its own fetcher.
+        coalescer(FakeBillingBackend.newBuilder(), 20);
+        AtomicBoolean isThrowing = new AtomicBoolean(true);
+        ProductDetailsQueryCoalescer coalescer = new ProductDetailsQueryCoalescer((products, listener) -> {
+            if (isThrowing.getAndSet(false)) {
+                throw new IllegalArgumentException("All products should be of the same product type");
+            }
+            backend.queryProductDetails(products, listener);
+        }, WINDOW_MILLIS, 20);
+
+        Response failed = query(coalescer, "a");
+        assertEquals(Collections.emptyList(), failed.await());
+        assertEquals(BillingClient.BillingResponseCode.DEVELOPER_ERROR, failed.responseCode);
+
+        Response retried = query(coalescer, "a");
+        assertEquals(Collections.singletonList("a"), retried.await());
+        assertEquals(BillingClient.BillingResponseCode.OK, retried.responseCode);
+    }
+
+    private ProductDetailsQueryCoalescer coalescer(FakeBillingBackend.Builder builder, int maxChunkSize) throws InterruptedException {
+        for (String productId : Arrays.asList("a", "b", "c", "d", "e")) {
+            builder.addInAppProduct(productId, 1_000_000L, "USD");
+        }
+        builder.addSubscription("s", 9_900_000L, "USD", Collections.singletonList("monthly"), Collections.emptyList());
+        backend = builder.build((result, purchases) -> {
+        });
+
+        CountDownLatch connected = new CountDownLatch(1);
+        backend.startConnection(new BillingClientStateListener() {
+            @Override
+            public void onBillingSetupFinished(@NonNull BillingResult result) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onBillingServiceDisconnected() {
+            }
+        });
+        assertTrue(connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        return new ProductDetailsQueryCoalescer((products, listener) -> {
+            fetches.add(new ArrayList<>(products));
+            backend.queryProductDetails(products, listener);
+        }, WINDOW_MILLIS, maxChunkSize);
+    }
+
+    private static Response query(ProductDetailsQueryCoalescer coalescer, String... productIds) {
+        Response response = new Response();
+        coalescer.query(keys(productIds), response::onResponse);
+        return response;
+    }
+
+    private static List<ProductKey> keys(String... productIds) {
+        List<ProductKey> keys = new ArrayList<>();
+        for (String productId : productIds) {
+            keys.add(new ProductKey(productId, BillingClient.ProductType.INAPP));
+        }
+        return keys;
+    }
+
+    private static final class Response {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> productIds = new ArrayList<>();
+        int responseCode;
+
+        void onResponse(BillingResult result, List<ProductDetails> productDetailsList) {
+            responseCode = result.getResponseCode();
+            for (ProductDetails productDetails : productDetailsList) {
+                productIds.add(productDetails.getProductId());
+            }
+            latch.countDown();
+        }
+
+        List<String> await() throws InterruptedException {
+            assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            return productIds;
+        }
+    }
+}
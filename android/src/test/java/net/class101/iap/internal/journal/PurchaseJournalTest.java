@@ -0,0 +1,186 @@
+package net.class101.iap.internal.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.billingclient.api.Purchase;
+
+import net.class101.iap.internal.billing.FinalizePipeline;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PurchaseJournalTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("rniap_purchase_journal", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void replaysRecordsInOrder() throws Exception {
+        write(
+                arrived("token-a"),
+                arrived("token-b"),
+                arrived("token-c"),
+                requested("token-b", true),
+                requested("token-c", false),
+                finalized("token-a", System.currentTimeMillis())
+        );
+
+        PurchaseJournal journal = new PurchaseJournal(file);
+
+        assertTrue(journal.isFinalized("token-a", false));
+        assertFalse(journal.isFinalized("token-b", true));
+        assertEquals(Arrays.asList("token-b", "token-c"), tokens(journal.getUnfinalizedPurchases()));
+
+        List<FinalizePipeline.Request> pending = journal.getPendingFinalizations();
+        assertEquals(2, pending.size());
+        assertEquals("token-b", pending.get(0).purchaseToken);
+        assertTrue(pending.get(0).isConsumable);
+        assertEquals("token-c", pending.get(1).purchaseToken);
+        assertFalse(pending.get(1).isConsumable);
+    }
+
+    @Test
+    public void skipsATornRecordAndRewritesTheFile() throws Exception {
+        write(arrived("token-a"), "{\"op\":\"arrived\",\"tok");
+
+        PurchaseJournal journal = new PurchaseJournal(file);
+
+        assertEquals(Collections.singletonList("token-a"), tokens(journal.getUnfinalizedPurchases()));
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            new JSONObject(line);
+        }
+    }
+
+    @Test
+    public void dropsFinalizedTokensAfterTheRetentionPeriod() throws Exception {
+        write(arrived("token-a"), finalized("token-a", 1));
+
+        PurchaseJournal journal = new PurchaseJournal(file);
+
+        assertFalse(journal.isFinalized("token-a", false));
+        assertTrue(journal.getUnfinalizedPurchases().isEmpty());
+    }
+
+    @Test
+    public void acknowledgedPurchaseIsStillConsumed() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(file);
+        journal.recordFinalized("token-a", false);
+
+        assertTrue(journal.isFinalized("token-a", false));
+        assertFalse(journal.isFinalized("token-a", true));
+
+        journal.recordFinalizeRequested("token-a", true);
+        List<FinalizePipeline.Request> pending = journal.getPendingFinalizations();
+        assertEquals(1, pending.size());
+        assertTrue(pending.get(0).isConsumable);
+
+        journal.recordFinalized("token-a", true);
+        assertTrue(journal.isFinalized("token-a", true));
+        assertTrue(journal.getPendingFinalizations().isEmpty());
+    }
+
+    @Test
+    public void abandonedFinalizationIsNotResumed() throws Exception {
+        write(arrived("token-a"), requested("token-a", true), record("abandoned", "token-a"));
+
+        PurchaseJournal journal = new PurchaseJournal(file);
+
+        assertTrue(journal.getPendingFinalizations().isEmpty());
+        assertEquals(Collections.singletonList("token-a"), tokens(journal.getUnfinalizedPurchases()));
+    }
+
+    @Test
+    public void reconcileRemovesTokensPlayNoLongerReports() throws Exception {
+        write(arrived("token-a"), arrived("token-b"), requested("token-b", true));
+
+        PurchaseJournal journal = new PurchaseJournal(file);
+        journal.reconcile(Collections.singletonList(purchase("token-a")), System.nanoTime());
+
+        assertEquals(Collections.singletonList("token-a"), tokens(journal.getUnfinalizedPurchases()));
+        assertTrue(journal.getPendingFinalizations().isEmpty());
+    }
+
+    @Test
+    public void reconcileKeepsTokensRecordedAfterTheQuery() throws Exception {
+        PurchaseJournal journal = new PurchaseJournal(file);
+        long queriedAt = System.nanoTime();
+        journal.recordArrived(purchase("token-a"));
+
+        journal.reconcile(Collections.emptyList(), queriedAt);
+
+        assertEquals(Collections.singletonList("token-a"), tokens(journal.getUnfinalizedPurchases()));
+    }
+
+    private void write(String... lines) throws IOException {
+        Files.write(file.toPath(), (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String arrived(String token) throws JSONException {
+        return new JSONObject()
+                .put("op", "arrived")
+                .put("token", token)
+                .put("purchase", purchaseJson(token))
+                .put("signature", "signature")
+                .toString();
+    }
+
+    private static String requested(String token, boolean isConsumable) throws JSONException {
+        return new JSONObject().put("op", "requested").put("token", token).put("consumable", isConsumable).toString();
+    }
+
+    private static String finalized(String token, long at) throws JSONException {
+        return new JSONObject().put("op", "finalized").put("token", token).put("at", at).toString();
+    }
+
+    private static String record(String op, String token) throws JSONException {
+        return new JSONObject().put("op", op).put("token", token).toString();
+    }
+
+    private static Purchase purchase(String token) throws JSONException {
+        return new Purchase(purchaseJson(token), "signature");
+    }
+
+    private static String purchaseJson(String token) throws JSONException {
+        return new JSONObject()
+                .put("orderId", "GPA." + token)
+                .put("packageName", "net.class101.iap.test")
+                .put("productIds", new JSONArray().put("product"))
+                .put("purchaseTime", 1_700_000_000_000L)
+                .put("purchaseState", 0)
+                .put("purchaseToken", token)
+                .put("acknowledged", false)
+                .toString();
+    }
+
+    private static List<String> tokens(List<Purchase> purchases) {
+        List<String> tokens = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            tokens.add(purchase.getPurchaseToken());
+        }
+        return tokens;
+    }
+}
@@ -35,6 +35,15 @@ RCT_EXPORT_METHOD(fetchProducts: (NSArray*) products) {
     [productsRequest start];
 }
 
+RCT_EXPORT_BLOCKING_SYNCHRONOUS_METHOD(getEntitlements) {
+    // Not tracked on iOS.
+    return @[];
+}
+
+RCT_EXPORT_BLOCKING_SYNCHRONOUS_METHOD(hasEntitlement: (NSString*) productId) {
+    return @NO;
+}
+
 RCT_EXPORT_METHOD(onFetchProducts:(RCTResponseSenderBlock)listener) {
     fetchProductsListener = listener;
 }
@@ -51,8 +60,7 @@ RCT_EXPORT_METHOD(onError:(RCTResponseSenderBlock)listener) {
     errorListener = listener;
 }
 
-RCT_EXPORT_METHOD(flush: (RCTPromiseResolveBlock) resolve
-                  rejector: (RCTPromiseRejectBlock) reject) {
+- (NSArray*) pendingTransactionItems {
     NSArray<SKPaymentTransaction*>* transactions = [[SKPaymentQueue defaultQueue] transactions];
     NSMutableArray* items = [NSMutableArray array];
 
@@ -81,7 +89,7 @@ RCT_EXPORT_METHOD(flush: (RCTPromiseResolveBlock) resolve
         [items addObject: item];
     }
 
-    resolve(items);
+    return items;
 }
 
 
@@ -155,6 +163,41 @@ RCT_EXPORT_METHOD(flush: (RCTPromiseResolveBlock) resolve
     fetchProductsListener(@[items]); // or iap:onFetchProductsFailure
 }
 
+// Entries that are not strings, e.g. NSNull for a purchase without a transactionId, are
+// reported as failed.
+- (NSArray*) finishTransactions: (NSArray*) transactionIds {
+    NSMutableArray* results = [NSMutableArray array];
+
+    for (id transactionId in transactionIds) {
+        if (![transactionId isKindOfClass: [NSString class]]) {
+            [results addObject: @{
+                @"purchaseToken": @"",
+                @"isSuccess": @NO,
+                @"code": @0,
+                @"message": @"transactionId is missing",
+                @"attempts": @0
+            }];
+            continue;
+        }
+
+        SKPaymentTransaction* transaction = transactionsMap[transactionId];
+        if (transaction) {
+            [[SKPaymentQueue defaultQueue] finishTransaction: transaction];
+        }
+
+        // iOS purchases have no purchase token; the transaction identifier plays its part.
+        [results addObject: @{
+            @"purchaseToken": transactionId,
+            @"isSuccess": @(transaction != nil),
+            @"code": @0,
+            @"message": transaction ? @"Finalize success" : @"Unknown transaction",
+            @"attempts": @1
+        }];
+    }
+
+    return results;
+}
+
 - (void) sendError: (NSString*) errorType body: (NSDictionary*) body {
     NSMutableDictionary *mutableDict = [body mutableCopy];
     [mutableDict setObject:errorType forKey:@"type"];
@@ -181,13 +224,46 @@ RCT_EXPORT_METHOD(fetchReceipt: (RCTPromiseResolveBlock) resolve
     resolve(encodedReceipt);
 }
 
+RCT_EXPORT_METHOD(getConnectionStatus: (RCTPromiseResolveBlock) resolve
+                  reject: (RCTPromiseRejectBlock) reject) {
+    reject(@"getConnectionStatus", @"Not implemented", nil);
+}
+
+RCT_EXPORT_METHOD(dumpTrace: (RCTPromiseResolveBlock) resolve
+                  reject: (RCTPromiseRejectBlock) reject) {
+    reject(@"dumpTrace", @"Not implemented", nil);
+}
+
+RCT_EXPORT_METHOD(removeEventListener:(NSString *)eventName) {
+}
+
 #if RCT_NEW_ARCH_ENABLED
+RCT_EXPORT_METHOD(exportCatalog:(NSArray*)products
+                          resolve:(RCTPromiseResolveBlock)resolve
+                           reject:(RCTPromiseRejectBlock)reject) {
+    reject(@"exportCatalog", @"Not implemented", nil);
+}
+
+RCT_EXPORT_METHOD(getMetrics:(JS::NativeInAppPurchaseModule::SpecGetMetricsOptions &)options
+                  resolve:(RCTPromiseResolveBlock)resolve
+                   reject:(RCTPromiseRejectBlock)reject) {
+    reject(@"getMetrics", @"Not implemented", nil);
+}
+
 RCT_EXPORT_METHOD(configure:(JS::NativeInAppPurchaseModule::SpecConfigureConfig &)config
                   resolve:(RCTPromiseResolveBlock)resolve
                    reject:(RCTPromiseRejectBlock)reject) {
     resolve(@([SKPaymentQueue canMakePayments]));
 }
 
+RCT_EXPORT_METHOD(preparePurchase:(NSString *)productId
+                           extras:(JS::NativeInAppPurchaseModule::PurchaseArgs &)extras
+                          resolve:(RCTPromiseResolveBlock)resolve
+                           reject:(RCTPromiseRejectBlock)reject) {
+    // StoreKit payments take no preparation.
+    resolve(nil);
+}
+
 RCT_EXPORT_METHOD(purchase:(NSString *)productId
                   args:(JS::NativeInAppPurchaseModule::PurchaseArgs &)args) {
     SKProduct* product = productsMap[productId];
@@ -215,6 +291,18 @@ RCT_EXPORT_METHOD(purchase:(NSString *)productId
     [[SKPaymentQueue defaultQueue] addPayment: payment];
 }
 
+RCT_EXPORT_METHOD(flush:(JS::NativeInAppPurchaseModule::SpecFlushOptions &)options
+                  resolve:(RCTPromiseResolveBlock)resolve
+                   reject:(RCTPromiseRejectBlock)reject) {
+    resolve([self pendingTransactionItems]);
+}
+
+RCT_EXPORT_METHOD(flushChanges:(JS::NativeInAppPurchaseModule::SpecFlushChangesOptions &)options
+                         resolve:(RCTPromiseResolveBlock)resolve
+                          reject:(RCTPromiseRejectBlock)reject) {
+    reject(@"flushChanges", @"Not implemented", nil);
+}
+
 RCT_EXPORT_METHOD(finalize:(JS::NativeInAppPurchaseModule::Purchase &)purchase
                   isConsumable:(BOOL)isConsumable
                        resolve:(RCTPromiseResolveBlock)resolve
@@ -225,6 +313,24 @@ RCT_EXPORT_METHOD(finalize:(JS::NativeInAppPurchaseModule::Purchase &)purchase
     resolve(@{ @"message": @"Finalize success" });
 }
 
+RCT_EXPORT_METHOD(finalizeAll:(facebook::react::LazyVector<JS::NativeInAppPurchaseModule::SpecFinalizeAllPurchasesElement>)purchases
+                  options:(JS::NativeInAppPurchaseModule::SpecFinalizeAllOptions &)options
+                  resolve:(RCTPromiseResolveBlock)resolve
+                   reject:(RCTPromiseRejectBlock)reject) {
+    NSMutableArray* transactionIds = [NSMutableArray array];
+    for (const auto& item : purchases) {
+        NSString* transactionId = item.purchase().transactionId();
+        [transactionIds addObject: transactionId ?: (id) [NSNull null]];
+    }
+    resolve([self finishTransactions: transactionIds]);
+}
+
+RCT_EXPORT_METHOD(addListener:(NSString *)eventName) {
+}
+
+RCT_EXPORT_METHOD(removeListeners:(double)count) {
+}
+
 - (std::shared_ptr<facebook::react::TurboModule>)getTurboModule:(const facebook::react::ObjCTurboModule::InitParams &)params {
   return std::make_shared<facebook::react::NativeInAppPurchaseModuleSpecJSI>(params);
 }
@@ -236,6 +342,14 @@ RCT_EXPORT_METHOD(configure: (NSDictionary*) config
     resolve(@([SKPaymentQueue canMakePayments]));
 }
 
+RCT_EXPORT_METHOD(preparePurchase: (NSString*) productId
+                  extras: (NSDictionary*) extras
+                  resolver: (RCTPromiseResolveBlock) resolve
+                  rejector: (RCTPromiseRejectBlock) reject) {
+    // StoreKit payments take no preparation.
+    resolve(nil);
+}
+
 RCT_EXPORT_METHOD(purchase: (NSString*) productId
                   extras: (NSDictionary*) extras) {
     SKProduct* product = productsMap[productId];
@@ -270,6 +384,18 @@ RCT_EXPORT_METHOD(purchase: (NSString*) productId
     [[SKPaymentQueue defaultQueue] addPayment: payment];
 }
 
+RCT_EXPORT_METHOD(flush: (NSDictionary*) options
+                  resolver: (RCTPromiseResolveBlock) resolve
+                  rejector: (RCTPromiseRejectBlock) reject) {
+    resolve([self pendingTransactionItems]);
+}
+
+RCT_EXPORT_METHOD(flushChanges: (NSDictionary*) options
+                  resolver: (RCTPromiseResolveBlock) resolve
+                  rejector: (RCTPromiseRejectBlock) reject) {
+    reject(@"flushChanges", @"Not implemented", nil);
+}
+
 RCT_EXPORT_METHOD(finalize: (NSDictionary*) purchase
                   resolver: (RCTPromiseResolveBlock) resolve
                   rejector: (RCTPromiseRejectBlock) reject) {
@@ -279,6 +405,31 @@ RCT_EXPORT_METHOD(finalize: (NSDictionary*) purchase
     resolve(@{ @"message": @"Finalize success" });
 }
 
+RCT_EXPORT_METHOD(finalizeAll: (NSArray*) purchases
+                  options: (NSDictionary*) options
+                  resolver: (RCTPromiseResolveBlock) resolve
+                  rejector: (RCTPromiseRejectBlock) reject) {
+    NSMutableArray* transactionIds = [NSMutableArray array];
+    for (NSDictionary* item in purchases) {
+        id purchase = item[@"purchase"];
+        id transactionId = [purchase isKindOfClass: [NSDictionary class]] ? purchase[@"transactionId"] : nil;
+        [transactionIds addObject: transactionId ?: [NSNull null]];
+    }
+    resolve([self finishTransactions: transactionIds]);
+}
+
+RCT_EXPORT_METHOD(exportCatalog: (NSArray*) products
+                  resolver: (RCTPromiseResolveBlock) resolve
+                  rejector: (RCTPromiseRejectBlock) reject) {
+    reject(@"exportCatalog", @"Not implemented", nil);
+}
+
+RCT_EXPORT_METHOD(getMetrics: (NSDictionary*) options
+                  resolver: (RCTPromiseResolveBlock) resolve
+                  rejector: (RCTPromiseRejectBlock) reject) {
+    reject(@"getMetrics", @"Not implemented", nil);
+}
+
 #endif /* RCT_NEW_ARCH_ENABLED */
 
 @end
@@ -1,9 +1,10 @@
 import { TurboModule, TurboModuleRegistry } from "react-native";
 import type { 
+  Double,
   Int32,
 } from 'react-native/Libraries/Types/CodegenTypes';
 
-type FetchProductInput = {
+export type FetchProductInput = {
   id: string;
 
   // Android only
@@ -12,7 +13,7 @@ type FetchProductInput = {
   offerId?: string;
 }
 
-type Product = {  
+export type Product = {  
   productId: string;
   type: string;
   planId?: string;
@@ -21,17 +22,106 @@ type Product = {
   description: string;
   price: string;
   currency: string;
+
+  // Android only
+  isCached?: boolean;
 }  
 
-type Purchase = {
+export type CatalogPricingPhase = {
+  price: string;
+  priceMicros: Double;
+  currency: string;
+  // ISO 8601 duration, e.g. P1M
+  period: string;
+  cycleCount: Int32;
+  // 1: infinite, 2: finite, 3: non-recurring
+  recurrenceMode: Int32;
+}
+
+export type CatalogOffer = {
+  offerId?: string;
+  offerToken: string;
+  tags: string[];
+  pricingPhases: CatalogPricingPhase[];
+}
+
+export type CatalogPlan = {
+  planId: string;
+  offers: CatalogOffer[];
+}
+
+export type CatalogProduct = {
+  productId: string;
+  type: string;
+  title: string;
+  description: string;
+  oneTimeOffer?: {
+    price: string;
+    priceMicros: Double;
+    currency: string;
+  };
+  plans?: CatalogPlan[];
+}
+
+export type Purchase = {
   productIds: string[];
   transactionId: string;
   transactionDate: string;
   receipt: string;
   purchaseToken: string;
+
+  // Android only, set by flush({ verify: true })
+  isVerified?: boolean;
 }
 
-type PurchaseArgs = {
+export type Entitlement = {
+  productId: string;
+  purchaseToken: string;
+  purchaseTime: Double;
+  isAutoRenewing: boolean;
+  isAcknowledged: boolean;
+}
+
+export type ConnectionStatus = {
+  state: 'DISCONNECTED' | 'CONNECTING' | 'CONNECTED' | 'CLOSED';
+  queueDepth: Int32;
+  maxQueueDepth: Int32;
+  lastConnectMillis: Double;
+  reconnectAttempts: Int32;
+  circuitState: 'CLOSED' | 'OPEN' | 'HALF_OPEN';
+  circuitRetryAfterMillis: Double;
+}
+
+export type FinalizeResult = {
+  purchaseToken: string;
+  isSuccess: boolean;
+  code: Int32;
+  message: string;
+  attempts: Int32;
+}
+
+export type OperationMetrics = {
+  name: string;
+  count: Double;
+  errorCount: Double;
+  meanMillis: Double;
+  p50Millis: Double;
+  p90Millis: Double;
+  p99Millis: Double;
+  maxMillis: Double;
+}
+
+export type PurchaseChanges = {
+  purchases: Purchase[];
+  unfinalizedCount: Int32;
+}
+
+export type Metrics = {
+  windowMillis: Double;
+  operations: OperationMetrics[];
+}
+
+export type PurchaseArgs = {
   // Android
   planId?: string,
   offerId?: string,
@@ -51,12 +141,56 @@ export interface Spec extends TurboModule {
   readonly getConstants: () => {};
   configure:(config?: {
     isAlternativeBillingEnable?: boolean,
+
+    // Android only
+    productCacheTtl?: Int32,
+    productCacheSize?: Int32,
+    workerThreads?: Int32,
+    compactPayloads?: boolean,
+    includeReceipts?: boolean,
+    publicKey?: string,
+    entitlementRefreshInterval?: Int32,
+    prefetchProducts?: FetchProductInput[],
   }) => Promise<boolean>;
   fetchProducts: (products: FetchProductInput[]) => void;
-  flush: () => Promise<Purchase[]>;
+  // Android only
+  exportCatalog: (products: FetchProductInput[]) => Promise<CatalogProduct[]>;
+  flush: (options?: {
+    // Android only
+    stream?: boolean,
+    local?: boolean,
+    // Resolves a compact payload string instead, which index.ts decodes.
+    compact?: boolean,
+    includeReceipts?: boolean,
+    verify?: boolean,
+  }) => Promise<Purchase[]>;
+  // Android only
+  flushChanges: (options?: {
+    reset?: boolean,
+  }) => Promise<PurchaseChanges>;
   purchase: (productId: string, extras?: PurchaseArgs) => void;
+  preparePurchase: (productId: string, extras?: PurchaseArgs) => Promise<void>;
   finalize: (purchase: Purchase, isConsumable: boolean) => Promise<void>;
-  fetchReceipt: () => Promise<string | undefined>;
+  finalizeAll: (purchases: {
+    purchase: Purchase,
+    isConsumable: boolean,
+  }[], options?: {
+    concurrency?: Int32,
+    maxRetries?: Int32,
+  }) => Promise<FinalizeResult[]>;
+  fetchReceipt: () => Promise<string | null>;
+  // Android only
+  getEntitlements: () => Entitlement[];
+  // Android only
+  hasEntitlement: (productId: string) => boolean;
+  // Android only
+  getConnectionStatus: () => Promise<ConnectionStatus>;
+  // Android only
+  getMetrics: (options?: {
+    reset?: boolean,
+  }) => Promise<Metrics>;
+  // Android only
+  dumpTrace: () => Promise<string>;
   onFetchProducts: (listener: (products: Product[]) => void) => void;
   onPurchase: (listener: (purchase: {
     productIds: string[],
@@ -72,6 +206,12 @@ export interface Spec extends TurboModule {
     code?: Int32,
     message: string }) => void) => void;
   clear: () => void;
+
+  // Event emitter
+  addListener: (eventName: string) => void;
+  removeListeners: (count: number) => void;
+  // Android only
+  removeEventListener: (eventName: string) => void;
 }
 
 export default TurboModuleRegistry.get<Spec>("NativeInAppPurchase") as Spec;
@@ -1 +1,207 @@
-export { default } from './NativeInAppPurchaseModule';
\ No newline at end of file
+import { NativeEventEmitter, Platform } from 'react-native';
+import type { EmitterSubscription } from 'react-native';
+import NativeInAppPurchase from './NativeInAppPurchaseModule';
+import type { Product, Purchase, Spec } from './NativeInAppPurchaseModule';
+
+export type {
+  CatalogOffer,
+  CatalogPlan,
+  CatalogPricingPhase,
+  CatalogProduct,
+  ConnectionStatus,
+  Entitlement,
+  FetchProductInput,
+  FinalizeResult,
+  Metrics,
+  OperationMetrics,
+  Product,
+  Purchase,
+  PurchaseArgs,
+  PurchaseChanges,
+} from './NativeInAppPurchaseModule';
+
+// Android delivers events through the event emitter, batched and buffered natively.
+// iOS still uses the listener callbacks of the native module.
+const Events = {
+  FETCH_PRODUCTS: 'InAppPurchase.onFetchProducts',
+  PURCHASES: 'InAppPurchase.onPurchases',
+  ERROR: 'InAppPurchase.onError',
+  ALTERNATIVE_BILLING_FLOW: 'InAppPurchase.onAlternativeBillingFlow',
+};
+
+const emitter = Platform.OS === 'android' ? new NativeEventEmitter(NativeInAppPurchase) : undefined;
+
+export type Subscription = {
+  remove: () => void;
+};
+
+type Listener = (payload: any) => void;
+
+// Every event type has any number of listeners. The native side is subscribed once per type, on
+// the first listener, and each event is decoded once before it is handed to every listener.
+const listeners: { [eventName: string]: Set<Listener> | undefined } = {};
+const subscriptions: { [eventName: string]: EmitterSubscription | undefined } = {};
+
+function dispatch(eventName: string, payload: any) {
+  const targets = listeners[eventName];
+  if (!targets) {
+    return;
+  }
+
+  // A listener that throws does not keep the others from receiving the event.
+  let error: unknown;
+  let hasError = false;
+  Array.from(targets).forEach((listener) => {
+    try {
+      listener(payload);
+    } catch (e) {
+      if (!hasError) {
+        error = e;
+        hasError = true;
+      }
+    }
+  });
+
+  if (hasError) {
+    throw error;
+  }
+}
+
+function subscribe(
+  eventName: string,
+  listener: Listener,
+  attach: (dispatch: Listener) => void,
+  decodePayload: (payload: any) => any = (payload) => payload
+): Subscription {
+  let targets = listeners[eventName];
+  if (!targets) {
+    targets = new Set();
+    listeners[eventName] = targets;
+
+    const onEvent = (payload: any) => dispatch(eventName, decodePayload(payload));
+    if (emitter) {
+      subscriptions[eventName] = emitter.addListener(eventName, onEvent);
+    } else {
+      attach(onEvent);
+    }
+  }
+
+  // The same function subscribed twice is called twice, and each handle removes its own entry.
+  const entry: Listener = (payload) => listener(payload);
+  targets.add(entry);
+
+  return {
+    remove: () => {
+      if (!targets!.delete(entry) || targets!.size > 0 || listeners[eventName] !== targets) {
+        return;
+      }
+
+      // The native callbacks on iOS cannot be detached, so they stay attached and dispatch to no one.
+      delete listeners[eventName];
+      unsubscribe(eventName);
+    },
+  };
+}
+
+// The emitter tells the native side only how many listeners were removed, so Android is told the
+// type as well and keeps buffering events of that type while others are still listened to.
+function unsubscribe(eventName: string) {
+  const subscription = subscriptions[eventName];
+  if (!subscription) {
+    return;
+  }
+
+  delete subscriptions[eventName];
+  NativeInAppPurchase.removeEventListener(eventName);
+  subscription.remove();
+}
+
+// Columnar payload sent by Android when compact payloads are enabled. Strings are indexes into
+// the shared string table; string arrays are arrays of indexes.
+type CompactPayload = {
+  length: number;
+  strings: string[];
+  columns: { [key: string]: (number | number[] | boolean | null)[] };
+};
+
+function decode<T>(payload: T[] | string): T[] {
+  if (typeof payload !== 'string') {
+    return payload;
+  }
+
+  const { length, strings, columns } = JSON.parse(payload) as CompactPayload;
+  const keys = Object.keys(columns);
+  const items: T[] = [];
+
+  for (let i = 0; i < length; i++) {
+    const item: any = {};
+    for (const key of keys) {
+      const value = columns[key]![i];
+      if (value === null || value === undefined) {
+        continue;
+      }
+      if (typeof value === 'number') {
+        item[key] = strings[value];
+      } else if (Array.isArray(value)) {
+        item[key] = value.map((index) => strings[index]);
+      } else {
+        item[key] = value;
+      }
+    }
+    items.push(item);
+  }
+
+  return items;
+}
+
+type InAppPurchaseModule = Omit<
+  Spec,
+  'addListener' | 'removeListeners' | 'removeEventListener' | 'onFetchProducts' | 'onPurchase' | 'onAlternativeBillingFlow' | 'onError'
+> & {
+  onFetchProducts: (listener: (products: Product[]) => void) => Subscription;
+  onPurchase: (listener: Parameters<Spec['onPurchase']>[0]) => Subscription;
+  onAlternativeBillingFlow: (listener: (token: string) => void) => Subscription;
+  onError: (listener: Parameters<Spec['onError']>[0]) => Subscription;
+};
+
+const InAppPurchase: InAppPurchaseModule = {
+  getConstants: () => NativeInAppPurchase.getConstants(),
+  configure: (config) => NativeInAppPurchase.configure(config),
+  fetchProducts: (products) => NativeInAppPurchase.fetchProducts(products),
+  exportCatalog: (products) => NativeInAppPurchase.exportCatalog(products),
+  flush: (options) => NativeInAppPurchase.flush(options).then(decode),
+  flushChanges: (options) => NativeInAppPurchase.flushChanges(options),
+  purchase: (productId, extras) => NativeInAppPurchase.purchase(productId, extras),
+  preparePurchase: (productId, extras) => NativeInAppPurchase.preparePurchase(productId, extras),
+  finalize: (purchase, isConsumable) => NativeInAppPurchase.finalize(purchase, isConsumable),
+  finalizeAll: (purchases, options) => NativeInAppPurchase.finalizeAll(purchases, options),
+  fetchReceipt: () => NativeInAppPurchase.fetchReceipt(),
+  getEntitlements: () => NativeInAppPurchase.getEntitlements(),
+  hasEntitlement: (productId) => NativeInAppPurchase.hasEntitlement(productId),
+  getConnectionStatus: () => NativeInAppPurchase.getConnectionStatus(),
+  getMetrics: (options) => NativeInAppPurchase.getMetrics(options),
+  dumpTrace: () => NativeInAppPurchase.dumpTrace(),
+  onFetchProducts: (listener) =>
+    subscribe(Events.FETCH_PRODUCTS, listener, (onEvent) => NativeInAppPurchase.onFetchProducts(onEvent), decode),
+  onPurchase: (listener) =>
+    subscribe(
+      Events.PURCHASES,
+      (purchases: Purchase[]) => purchases.forEach(listener),
+      // iOS calls back once per purchase; Android emits every purchase of an update at once.
+      (onEvent) => NativeInAppPurchase.onPurchase((purchase) => onEvent([purchase])),
+      decode
+    ),
+  onAlternativeBillingFlow: (listener) =>
+    subscribe(Events.ALTERNATIVE_BILLING_FLOW, listener, (onEvent) => NativeInAppPurchase.onAlternativeBillingFlow(onEvent)),
+  onError: (listener) => subscribe(Events.ERROR, listener, (onEvent) => NativeInAppPurchase.onError(onEvent)),
+  clear: () => {
+    Object.keys(listeners).forEach((eventName) => {
+      listeners[eventName]?.clear();
+      delete listeners[eventName];
+    });
+    Object.keys(subscriptions).forEach(unsubscribe);
+    NativeInAppPurchase.clear();
+  },
+};
+
+export default InAppPurchase;